@@ -25,8 +25,12 @@ import net.lucypoulton.squirtgun.platform.audience.SquirtgunPlayer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Manages users' pronouns. When using sets, take care to use a sorted implementation
@@ -46,7 +50,7 @@ public interface PronounHandler {
     /**
      * Gets a list of all current pronoun sets in use by players.
      *
-     * @return a list of all current pronoun sets in use by players
+     * @return a list of all current pronoun sets in use by players. This set may be shared and must not be modified
      */
     Set<PronounSet> getAllPronouns();
 
@@ -58,6 +62,57 @@ public interface PronounHandler {
     @NotNull Set<PronounSet> getPronouns(SquirtgunPlayer player);
 
     /**
+     * Gets the pronouns of many players at once. This is much cheaper than calling
+     * {@link #getPronouns(SquirtgunPlayer)} for each player when their pronouns aren't cached,
+     * as storage can load them all together. Like that method, this may block on storage.
+     *
+     * @param players the UUIDs of the players to get pronouns for
+     * @return a map of each player's UUID to their pronouns. Players that couldn't be loaded are left out.
+     * Handlers that can't look players up by UUID return an empty map
+     * @since 2.1.0
+     */
+    default @NotNull Map<UUID, Set<PronounSet>> getPronouns(Collection<UUID> players) {
+        return Map.of();
+    }
+
+    /**
+     * Gets a user's pronouns only if they are already held in memory. This never blocks on storage,
+     * so it's safe to call from the main thread.
+     *
+     * @return the user's pronouns, or null if they aren't cached. Handlers without a cache always return null
+     * @since 2.1.0
+     */
+    default @Nullable Set<PronounSet> getPronounsIfCached(SquirtgunPlayer player) {
+        return null;
+    }
+
+    /**
+     * Gets a user's pronouns without blocking the calling thread. If they aren't cached they
+     * are loaded on a background thread.
+     *
+     * @return a future completed with the user's pronouns
+     * @see #getPronouns(SquirtgunPlayer)
+     * @since 2.1.0
+     */
+    default CompletableFuture<Set<PronounSet>> getPronounsAsync(SquirtgunPlayer player) {
+        return CompletableFuture.supplyAsync(() -> getPronouns(player));
+    }
+
+    /**
+     * Sets a user's pronouns, writing them to storage on a background thread.
+     * The {@link SetPronounsEvent} is dispatched on the calling thread. Handlers that don't
+     * override this write on the calling thread too, using {@link #setUserPronouns(SquirtgunPlayer, Set)}.
+     *
+     * @param player the player to set pronouns for
+     * @param set  the pronouns to set
+     * @return a future completed once the pronouns have been stored, or immediately if the event was cancelled
+     * @since 2.1.0
+     */
+    default CompletableFuture<Void> setUserPronounsAsync(SquirtgunPlayer player, @NotNull Set<PronounSet> set) {
+        setUserPronouns(player, set);
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Clears a user's pronouns.
      *
@@ -65,6 +120,19 @@ public interface PronounHandler {
      */
     void clearUserPronouns(SquirtgunPlayer player);
 
+    /**
+     * Clears a user's pronouns on a background thread. Handlers that don't override this clear them
+     * on the calling thread, using {@link #clearUserPronouns(SquirtgunPlayer)}.
+     *
+     * @param player the player to clear pronouns for
+     * @return a future completed once the pronouns have been cleared
+     * @since 2.1.0
+     */
+    default CompletableFuture<Void> clearUserPronounsAsync(SquirtgunPlayer player) {
+        clearUserPronouns(player);
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Parses a string into a collection of pronoun sets. Appropriate for use in commands.
      *
@@ -90,6 +158,15 @@ public interface PronounHandler {
      */
     void registerProvider(PronounProvider provider);
 
+    /**
+     * Tells the handler that a registered provider's sets have changed, so it should re-read them.
+     * Handlers that read providers every time do nothing.
+     *
+     * @since 2.1.0
+     */
+    default void refreshProviders() {
+    }
+
     /**
      * The result of an attempt to parse a string to a set of pronoun sets.
      */
@@ -4,6 +4,10 @@ import net.lucypoulton.pronouns.api.set.PronounSet;
 
 import java.util.Set;
 
+/**
+ * A source of known pronoun sets. The handler keeps a snapshot of every provider's sets, so when
+ * the sets a provider returns change, it should call {@link net.lucypoulton.pronouns.api.PronounHandler#refreshProviders()}.
+ */
 @FunctionalInterface
 public interface PronounProvider {
     Set<PronounSet> get();
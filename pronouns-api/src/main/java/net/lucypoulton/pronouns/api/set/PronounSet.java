@@ -4,10 +4,14 @@ import net.lucypoulton.pronouns.api.StringUtils;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 public abstract class PronounSet {
+
+    // lazily computed - sets are immutable, so a racy recompute is harmless
+    private String canonicalKey;
+    private int hash;
+
     public abstract String subjective();
 
     public abstract String objective();
@@ -42,22 +46,62 @@ public abstract class PronounSet {
         return new String[]{subjective(), objective(), progressive(), possessiveAdjective(), possessivePronoun(), reflexive()};
     }
 
+    /**
+     * The key this set is compared and interned by - its exact string form, so sets that differ only
+     * in case stay distinct and each keeps the capitalisation it was given.
+     * Two sets with the same canonical key are equal.
+     *
+     * @since 2.1.0
+     */
+    public String canonicalKey() {
+        String key = canonicalKey;
+        if (key == null) {
+            key = toString();
+            canonicalKey = key;
+        }
+        return key;
+    }
+
     @Override
     public boolean equals(Object obj) {
-        return obj instanceof PronounSet && toString().equals(obj.toString());
+        if (this == obj) {
+            return true;
+        }
+        return obj instanceof PronounSet
+            && hashCode() == obj.hashCode()
+            && canonicalKey().equals(((PronounSet) obj).canonicalKey());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash((Object[]) asArray());
+        int h = hash;
+        if (h == 0) {
+            h = canonicalKey().hashCode();
+            hash = h;
+        }
+        return h;
     }
 
+    /**
+     * Parses a set from its string form. Equal sets parsed this way share one canonical instance.
+     */
     public static PronounSet parse(String input) {
         List<String> split = StringUtils.splitSet(input);
         if (split.size() != 6) {
             throw new IllegalArgumentException("Invalid number of pronouns in set");
         }
-        return new ParsedPronounSet(split.get(0), split.get(1), split.get(2), split.get(3), split.get(4), split.get(5));
+        return of(split.get(0), split.get(1), split.get(2), split.get(3), split.get(4), split.get(5));
+    }
+
+    /**
+     * Gets the canonical set with the given forms, creating it if no equal set is in use.
+     *
+     * @since 2.1.0
+     */
+    public static PronounSet of(String subjective, String objective, String progressive,
+                                String possessiveAdjective, String possessivePronoun, String reflexive) {
+        return PronounSetPool.intern(new ParsedPronounSet(subjective, objective, progressive,
+            possessiveAdjective, possessivePronoun, reflexive));
     }
 
     public static String format(Collection<PronounSet> sets) {
@@ -0,0 +1,34 @@
+package net.lucypoulton.pronouns.api.set;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Holds one canonical instance of each parsed pronoun set in use, so that equal sets
+ * share memory and usually compare by reference. Sets are held weakly, and are dropped
+ * once nothing else refers to them.
+ *
+ * @since 2.1.0
+ */
+public final class PronounSetPool {
+
+    //noinspection UnstableApiUsage
+    private static final Interner<PronounSet> pool = Interners.newWeakInterner();
+
+    private PronounSetPool() {
+    }
+
+    /**
+     * Gets the canonical instance of a set. Only {@link ParsedPronounSet}s are pooled - any other
+     * implementation is returned as-is, as it may behave differently to a plain set with the same forms.
+     *
+     * @param set the set to intern
+     * @return the canonical instance equal to the given set
+     */
+    public static PronounSet intern(PronounSet set) {
+        if (!(set instanceof ParsedPronounSet)) {
+            return set;
+        }
+        return pool.intern(set);
+    }
+}
@@ -15,6 +15,7 @@ dependencies {
     implementation("net.lucypoulton:squirtgun-api:2.0.0-pre9")
     implementation("net.lucypoulton:squirtgun-platform-bukkit:2.0.0-pre9")
     implementation("com.zaxxer:HikariCP:5.0.0")
+    implementation("com.h2database:h2:2.1.214")
     implementation("org.bstats:bstats-bukkit:2.2.1")
 
     compileOnly("org.spigotmc:spigot-api:1.17-R0.1-SNAPSHOT")
@@ -34,6 +35,8 @@ tasks {
 
         minimize {
             exclude(project(":pronouns-api"))
+            // h2 loads most of its classes reflectively
+            exclude(dependency("com.h2database:h2:.*"))
         }
 
         dependencies {
@@ -58,15 +58,30 @@ public class BukkitConfigHandler implements ConfigHandler {
         cfg.addDefault("mysql.database", "pronouns");
         cfg.addDefault("mysql.username", "pronouns");
         cfg.addDefault("mysql.password", "password");
+        cfg.addDefault("mysql.flushInterval", 1000);
+        cfg.addDefault("mysql.flushBatchSize", 100);
+        cfg.addDefault("mysql.syncInterval", 2000);
+        cfg.addDefault("mysql.prefetchWindow", 25);
+        cfg.addDefault("mysql.prefetchBatchSize", 200);
+        cfg.addDefault("mysql.replica.host", "");
+        cfg.addDefault("mysql.replica.port", 3306);
+
+        cfg.addDefault("storage.threads", 4);
+        cfg.addDefault("storage.queueSize", 1024);
 
         cfg.addDefault("predefinedSets", new ArrayList<String>());
 
         cfg.addDefault("filter.enabled", "true");
         cfg.addDefault("filter.patterns", new String[]{"apache+", "hel+icop+ter"});
 
+        cfg.addDefault("tabComplete.limit", 50);
+
         cfg.addDefault("cloud.sync", true);
         cfg.addDefault("cloud.upload", true);
 
+        cfg.addDefault("proxy.sync", false);
+        cfg.addDefault("proxy.secret", "");
+
         pl.saveConfig();
 
         decoStrings.put(TextDecoration.OBFUSCATED, 'k');
@@ -147,6 +162,11 @@ public class BukkitConfigHandler implements ConfigHandler {
         return getBoolValue("filter.enabled");
     }
 
+    @Override
+    public int getMaxTabCompletions() {
+        return pl.getConfig().getInt("tabComplete.limit", 50);
+    }
+
     public ConnectionType getConnectionType() {
         return ConnectionType.valueOf(getString("connection").toUpperCase());
     }
@@ -161,16 +181,54 @@ public class BukkitConfigHandler implements ConfigHandler {
         return getBoolValue("cloud.upload");
     }
 
+    /**
+     * @return whether to get pronouns from ProNouns on the BungeeCord proxy, when the server is behind one
+     */
+    public boolean shouldSyncWithProxy() {
+        return "true".equals(getString("proxy.sync", "false"));
+    }
+
+    /**
+     * @return the secret shared with the proxy, which its messages must be signed with
+     */
+    public String getProxySecret() {
+        return getString("proxy.secret", "");
+    }
+
     public SqlInfoContainer getSqlConnectionData() {
+        String replicaHost = getString("mysql.replica.host", "");
+        SqlInfoContainer replica = replicaHost.isEmpty() ? null : new SqlInfoContainer(
+                replicaHost,
+                pl.getConfig().getInt("mysql.replica.port", 3306),
+                getString("mysql.database"),
+                getString("mysql.username"),
+                getString("mysql.password")
+        );
         return new SqlInfoContainer(
                 getString("mysql.host"),
                 pl.getConfig().getInt("mysql.port", 3306),
                 getString("mysql.database"),
                 getString("mysql.username"),
-                getString("mysql.password")
+                getString("mysql.password"),
+                pl.getConfig().getLong("mysql.flushInterval", 1000),
+                pl.getConfig().getInt("mysql.flushBatchSize", 100),
+                pl.getConfig().getLong("mysql.syncInterval", 2000),
+                pl.getConfig().getLong("mysql.prefetchWindow", 25),
+                pl.getConfig().getInt("mysql.prefetchBatchSize", 200),
+                replica
         );
     }
 
+    @Override
+    public int getStorageThreads() {
+        return pl.getConfig().getInt("storage.threads", 4);
+    }
+
+    @Override
+    public int getStorageQueueSize() {
+        return pl.getConfig().getInt("storage.queueSize", 1024);
+    }
+
     public boolean checkForUpdates() {
         return getBoolValue("checkForUpdates");
     }
@@ -23,18 +23,27 @@ import net.lucypoulton.pronouns.ProNouns;
 import net.lucypoulton.pronouns.ProNounsPlatform;
 import net.lucypoulton.pronouns.api.PronounHandler;
 import net.lucypoulton.pronouns.config.ConfigHandler;
+import net.lucypoulton.pronouns.config.ConnectionType;
 import net.lucypoulton.pronouns.storage.MysqlConnectionException;
+import net.lucypoulton.pronouns.storage.H2FileStorage;
+import net.lucypoulton.pronouns.storage.LogFileStorage;
+import net.lucypoulton.pronouns.storage.MappedFileStorage;
 import net.lucypoulton.pronouns.storage.MysqlFileStorage;
+import net.lucypoulton.pronouns.storage.ProxyProtocol;
+import net.lucypoulton.pronouns.storage.ProxyStorage;
 import net.lucypoulton.pronouns.storage.Storage;
 import org.bstats.bukkit.Metrics;
 import org.bstats.charts.SimplePie;
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.UUID;
 
 public final class ProNounsBukkit extends JavaPlugin {
 
@@ -79,18 +88,24 @@ public final class ProNounsBukkit extends JavaPlugin {
             }
             new ProNounsPapi(plugin).register();
         }
-        switch (configHandler.getConnectionType()) {
-            case YML:
-                storage = new YamlFileStorage(this);
-                break;
-            case MYSQL:
-                try {
-                    storage = new MysqlFileStorage(plugin);
-                    break;
-                } catch (MysqlConnectionException e) {
-                    getPluginLoader().disablePlugin(this);
-                    return;
+        if (configHandler.shouldSyncWithProxy() && configHandler.getProxySecret().isEmpty()) {
+            getLogger().severe("proxy.sync is on but proxy.secret is empty - set it to the secret in the proxy's "
+                + "ProNouns config. Using storage directly until then.");
+        }
+        if (getServer().spigot().getConfig().getBoolean("settings.bungeecord") && configHandler.shouldSyncWithProxy()
+            && !configHandler.getProxySecret().isEmpty()) {
+            storage = openProxyStorage();
+        } else {
+            try {
+                storage = openStorage(configHandler.getConnectionType());
+                if (storage instanceof MappedFileStorage) {
+                    importYamlIntoMapped((MappedFileStorage) storage);
                 }
+            } catch (IOException e) {
+                getLogger().severe("Failed to load pronoun storage! - " + e);
+                getPluginLoader().disablePlugin(this);
+                return;
+            }
         }
 
         plugin.onEnable();
@@ -98,4 +113,78 @@ public final class ProNounsBukkit extends JavaPlugin {
         this.getServer().getServicesManager().register(PronounHandler.class, plugin.getPronounHandler(),
                 this, ServicePriority.Normal);
     }
-}
\ No newline at end of file
+
+    @Override
+    public void onDisable() {
+        if (plugin != null) {
+            plugin.onDisable();
+        }
+    }
+
+    /**
+     * Opens a new instance of a storage backend.
+     */
+    Storage openStorage(ConnectionType type) throws IOException {
+        try {
+            switch (type) {
+                case YML:
+                    return new YamlFileStorage(this);
+                case LOG:
+                    return new LogFileStorage(plugin);
+                case MAPPED:
+                    return new MappedFileStorage(plugin);
+                case H2:
+                    return new H2FileStorage(plugin);
+                case MYSQL:
+                    return new MysqlFileStorage(plugin);
+                default:
+                    throw new IOException("Unknown storage type " + type);
+            }
+        } catch (MysqlConnectionException e) {
+            throw new IOException("Failed to connect to the database", e);
+        }
+    }
+
+    /**
+     * Gets pronouns from the proxy over plugin messaging, falling back to the configured storage
+     * if the proxy doesn't answer.
+     */
+    private Storage openProxyStorage() {
+        ProxyStorage proxyStorage = new ProxyStorage(this::sendToProxy, new ProxyProtocol(configHandler.getProxySecret()),
+            () -> openStorage(configHandler.getConnectionType()),
+            () -> !getServer().isPrimaryThread(), getLogger());
+        getServer().getMessenger().registerOutgoingPluginChannel(this, ProxyProtocol.CHANNEL);
+        getServer().getMessenger().registerIncomingPluginChannel(this, ProxyProtocol.CHANNEL,
+            (channel, player, message) -> proxyStorage.handleMessage(message));
+        getLogger().info("Getting pronouns from the proxy.");
+        return proxyStorage;
+    }
+
+    /**
+     * Plugin messages are sent through a player's connection - the player the message is about if they're
+     * online, otherwise anyone.
+     */
+    private boolean sendToProxy(UUID about, byte[] message) {
+        Player carrier = getServer().getPlayer(about);
+        if (carrier == null) {
+            carrier = getServer().getOnlinePlayers().stream().findFirst().orElse(null);
+        }
+        if (carrier == null) {
+            return false;
+        }
+        carrier.sendPluginMessage(this, ProxyProtocol.CHANNEL, message);
+        return true;
+    }
+
+    /**
+     * Copies everything from datastore.yml into the memory-mapped storage the first time it is used.
+     */
+    private void importYamlIntoMapped(MappedFileStorage mapped) {
+        if (mapped.isEmpty() && new File(getDataFolder(), "datastore.yml").exists()) {
+            YamlFileStorage yaml = new YamlFileStorage(this);
+            getLogger().info("Copying players from datastore.yml...");
+            getLogger().info("Copied " + mapped.importFrom(yaml) + " players from datastore.yml.");
+            yaml.close();
+        }
+    }
+}
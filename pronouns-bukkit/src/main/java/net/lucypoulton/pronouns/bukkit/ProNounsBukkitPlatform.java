@@ -2,9 +2,12 @@ package net.lucypoulton.pronouns.bukkit;
 
 import net.lucypoulton.pronouns.ProNounsPlatform;
 import net.lucypoulton.pronouns.config.ConfigHandler;
+import net.lucypoulton.pronouns.config.ConnectionType;
 import net.lucypoulton.pronouns.storage.Storage;
 import net.lucypoulton.squirtgun.bukkit.BukkitPlatform;
 
+import java.io.IOException;
+
 public class ProNounsBukkitPlatform extends BukkitPlatform implements ProNounsPlatform {
     private final ProNounsBukkit plugin;
     public ProNounsBukkitPlatform(ProNounsBukkit plugin) {
@@ -22,6 +25,11 @@ public class ProNounsBukkitPlatform extends BukkitPlatform implements ProNounsPl
         return plugin.getStorage();
     }
 
+    @Override
+    public Storage openStorage(ConnectionType type) throws IOException {
+        return plugin.openStorage(type);
+    }
+
     @Override
     public void reloadConfig() {
         plugin.reloadConfig();
@@ -20,8 +20,11 @@ package net.lucypoulton.pronouns.bukkit;
 
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
+import net.lucypoulton.pronouns.storage.DebouncedFileWriter;
+import net.lucypoulton.pronouns.storage.PlayerCache;
 import net.lucypoulton.pronouns.storage.Storage;
 import net.lucypoulton.squirtgun.util.UuidUtils;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 
@@ -30,19 +33,42 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 public class YamlFileStorage implements Storage {
 
+    // how long to wait after a change before saving, so bursts of changes are saved together
+    private static final long SAVE_DELAY_MILLIS = 2000;
+    private static final String HEADER = "This file will automatically be added to - you shouldn't need to edit it!";
+
     private final ProNounsBukkit pl;
+    private final PlayerCache cache = new PlayerCache();
     private File configFile;
+    private final DebouncedFileWriter writer;
     private FileConfiguration config;
 
     private void save() {
-        try {
-            config.save(configFile);
-        } catch (IOException e) {
-            pl.getLogger().severe("Failed to save data - " + e);
+        writer.markDirty();
+    }
+
+    /**
+     * Copies every player's pronouns under the lock, then turns the copy into YAML without it,
+     * so a large file being saved doesn't hold up reads and writes.
+     */
+    private String serialise() {
+        Map<String, List<String>> players = new LinkedHashMap<>();
+        synchronized (this) {
+            ConfigurationSection section = config.getConfigurationSection("players");
+            if (section != null) {
+                for (String uuid : section.getKeys(false)) {
+                    players.put(uuid, section.getStringList(uuid));
+                }
+            }
         }
+        YamlConfiguration snapshot = new YamlConfiguration();
+        snapshot.options().header(HEADER);
+        players.forEach((uuid, sets) -> snapshot.set("players." + uuid, sets));
+        return snapshot.saveToString();
     }
 
     public YamlFileStorage(ProNounsBukkit plugin) {
@@ -68,22 +94,49 @@ public class YamlFileStorage implements Storage {
             pl.getLogger().severe("Error while loading data store file - " + e);
             pl.getPluginLoader().disablePlugin(pl);
         }
+        writer = new DebouncedFileWriter(configFile.toPath(), this::serialise, SAVE_DELAY_MILLIS, pl.getLogger());
     }
 
     @Override
-    public Set<String> getPronouns(UUID uuid) {
+    public synchronized Set<String> getPronouns(UUID uuid) {
+        Set<String> cached = cache.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
         List<String> list = config.getStringList("players." + uuid.toString());
-		return new LinkedHashSet<>(list);
+		return cache.putLoaded(uuid, new LinkedHashSet<>(list));
+    }
+
+    @Override
+    public PlayerCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public synchronized Map<UUID, Set<String>> getPronouns(Collection<UUID> uuids) {
+        Map<UUID, Set<String>> out = new HashMap<>();
+        ConfigurationSection players = config.getConfigurationSection("players");
+        for (UUID uuid : uuids) {
+            Set<String> cached = cache.get(uuid);
+            if (cached != null) {
+                out.put(uuid, cached);
+            } else {
+                out.put(uuid, cache.putLoaded(uuid, players == null ? Set.of() : new LinkedHashSet<>(players.getStringList(uuid.toString()))));
+            }
+        }
+        return out;
     }
 
     @Override
-    public void setPronouns(UUID uuid, Set<String> sets) {
+    public synchronized void setPronouns(UUID uuid, Set<String> sets) {
+        cache.put(uuid, sets);
         config.set("players." + uuid.toString(), new ArrayList<>(sets));
         save();
     }
 
     @Override
-    public void clearPronouns(UUID uuid) {
+    public synchronized void clearPronouns(UUID uuid) {
+        cache.put(uuid, Set.of());
         config.set("players." + uuid.toString(), new String[0]);
         save();
     }
@@ -91,11 +144,40 @@ public class YamlFileStorage implements Storage {
 	@Override
 	public SetMultimap<UUID, String> getAllPronouns() {
         SetMultimap<UUID, String> out = MultimapBuilder.hashKeys().linkedHashSetValues().build();
-
-    	// if this is null then something is seriously wrong
-    	for (String uuid : Objects.requireNonNull(config.getConfigurationSection("players")).getKeys(false)) {
-    		out.putAll(UuidUtils.fromString(uuid), config.getStringList("players." + uuid));
-		}
+        forEachPronouns(out::putAll);
 		return out;
 	}
+
+    @Override
+    public boolean forEachPronouns(BiConsumer<UUID, List<String>> consumer) {
+        ConfigurationSection players;
+        Collection<String> uuids;
+        synchronized (this) {
+            // if this is null then something is seriously wrong
+            players = Objects.requireNonNull(config.getConfigurationSection("players"));
+            uuids = players.getKeys(false);
+        }
+        // reads one player at a time from the loaded file, rather than copying every player first.
+        // the lock is only held per player, so slow consumers don't hold up other reads and writes
+        for (String uuid : uuids) {
+            List<String> sets;
+            synchronized (this) {
+                sets = players.getStringList(uuid);
+            }
+            if (!sets.isEmpty()) {
+                consumer.accept(UuidUtils.fromString(uuid), sets);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean flush() {
+        return writer.flush();
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
 }
@@ -15,6 +15,7 @@ dependencies {
     implementation("net.lucypoulton:squirtgun-api:2.0.0-pre9")
     implementation("net.lucypoulton:squirtgun-platform-bungee:2.0.0-pre9")
     implementation("com.zaxxer:HikariCP:5.0.0")
+    implementation("com.h2database:h2:2.1.214")
     implementation("org.bstats:bstats-bungeecord:2.2.1")
 
     compileOnly("net.md-5:bungeecord-api:1.17-R0.1-SNAPSHOT")
@@ -34,6 +35,8 @@ tasks {
 
         minimize {
             exclude(project(":pronouns-api"))
+            // h2 loads most of its classes reflectively
+            exclude(dependency("com.h2database:h2:.*"))
         }
 
         dependencies {
@@ -137,6 +137,21 @@ public class BungeeConfigHandler implements ConfigHandler {
         return getBoolValue("filter.enabled");
     }
 
+    @Override
+    public int getMaxTabCompletions() {
+        return cfg.getInt("tabComplete.limit", 50);
+    }
+
+    @Override
+    public int getStorageThreads() {
+        return cfg.getInt("storage.threads", 4);
+    }
+
+    @Override
+    public int getStorageQueueSize() {
+        return cfg.getInt("storage.queueSize", 1024);
+    }
+
     public boolean checkForUpdates() {
         return getBoolValue("checkForUpdates");
     }
@@ -151,13 +166,34 @@ public class BungeeConfigHandler implements ConfigHandler {
         return getBoolValue("cloud.upload");
     }
 
+    /**
+     * @return the secret shared with backend servers, or an empty string if they aren't sent pronouns
+     */
+    public String getProxySecret() {
+        return getString("proxy.secret", "");
+    }
+
     public SqlInfoContainer getSqlConnectionData() {
+        String replicaHost = getString("mysql.replica.host", "");
+        SqlInfoContainer replica = replicaHost.isEmpty() ? null : new SqlInfoContainer(
+                replicaHost,
+                cfg.getInt("mysql.replica.port", 3306),
+                getString("mysql.database"),
+                getString("mysql.username"),
+                getString("mysql.password")
+        );
         return new SqlInfoContainer(
                 getString("mysql.host"),
                 cfg.getInt("mysql.port", 3306),
                 getString("mysql.database"),
                 getString("mysql.username"),
-                getString("mysql.password")
+                getString("mysql.password"),
+                cfg.getLong("mysql.flushInterval", 1000),
+                cfg.getInt("mysql.flushBatchSize", 100),
+                cfg.getLong("mysql.syncInterval", 2000),
+                cfg.getLong("mysql.prefetchWindow", 25),
+                cfg.getInt("mysql.prefetchBatchSize", 200),
+                replica
         );
     }
 }
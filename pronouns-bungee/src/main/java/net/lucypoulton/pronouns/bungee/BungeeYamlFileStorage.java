@@ -20,6 +20,8 @@ package net.lucypoulton.pronouns.bungee;
 
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
+import net.lucypoulton.pronouns.storage.DebouncedFileWriter;
+import net.lucypoulton.pronouns.storage.PlayerCache;
 import net.lucypoulton.pronouns.storage.Storage;
 import net.lucypoulton.squirtgun.util.UuidUtils;
 import net.md_5.bungee.config.Configuration;
@@ -28,21 +30,43 @@ import net.md_5.bungee.config.YamlConfiguration;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 public class BungeeYamlFileStorage implements Storage {
 
+    // how long to wait after a change before saving, so bursts of changes are saved together
+    private static final long SAVE_DELAY_MILLIS = 2000;
+
     private final ProNounsBungee pl;
+    private final PlayerCache cache = new PlayerCache();
     private File configFile;
+    private final DebouncedFileWriter writer;
     private Configuration config;
 
     private void save() {
-        try {
-            ConfigurationProvider.getProvider(YamlConfiguration.class).save(config, configFile);
-        } catch (IOException e) {
-            pl.getLogger().severe("Failed to save data - " + e);
+        writer.markDirty();
+    }
+
+    /**
+     * Copies every player's pronouns under the lock, then turns the copy into YAML without it,
+     * so a large file being saved doesn't hold up reads and writes.
+     */
+    private String serialise() {
+        Map<String, List<String>> players = new LinkedHashMap<>();
+        synchronized (this) {
+            Configuration section = config.getSection("players");
+            for (String uuid : section.getKeys()) {
+                players.put(uuid, section.getStringList(uuid));
+            }
         }
+        Configuration snapshot = new Configuration();
+        players.forEach((uuid, sets) -> snapshot.set("players." + uuid, sets));
+        StringWriter out = new StringWriter();
+        ConfigurationProvider.getProvider(YamlConfiguration.class).save(snapshot, out);
+        return out.toString();
     }
 
     public BungeeYamlFileStorage(ProNounsBungee plugin) {
@@ -59,22 +83,49 @@ public class BungeeYamlFileStorage implements Storage {
         } catch (IOException e) {
             pl.getLogger().severe("Error while loading data store file - " + e);
         }
+        writer = new DebouncedFileWriter(configFile.toPath(), this::serialise, SAVE_DELAY_MILLIS, pl.getLogger());
     }
 
     @Override
-    public Set<String> getPronouns(UUID uuid) {
+    public synchronized Set<String> getPronouns(UUID uuid) {
+        Set<String> cached = cache.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
         List<String> list = config.getStringList("players." + uuid.toString());
-		return new LinkedHashSet<>(list);
+		return cache.putLoaded(uuid, new LinkedHashSet<>(list));
+    }
+
+    @Override
+    public PlayerCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public synchronized Map<UUID, Set<String>> getPronouns(Collection<UUID> uuids) {
+        Map<UUID, Set<String>> out = new HashMap<>();
+        Configuration players = config.getSection("players");
+        for (UUID uuid : uuids) {
+            Set<String> cached = cache.get(uuid);
+            if (cached != null) {
+                out.put(uuid, cached);
+            } else {
+                out.put(uuid, cache.putLoaded(uuid, new LinkedHashSet<>(players.getStringList(uuid.toString()))));
+            }
+        }
+        return out;
     }
 
     @Override
-    public void setPronouns(UUID uuid, Set<String> sets) {
-        config.set("players." + uuid.toString(), sets);
+    public synchronized void setPronouns(UUID uuid, Set<String> sets) {
+        cache.put(uuid, sets);
+        config.set("players." + uuid.toString(), new ArrayList<>(sets));
         save();
     }
 
     @Override
-    public void clearPronouns(UUID uuid) {
+    public synchronized void clearPronouns(UUID uuid) {
+        cache.put(uuid, Set.of());
         config.set("players." + uuid.toString(), new String[0]);
         save();
     }
@@ -82,11 +133,40 @@ public class BungeeYamlFileStorage implements Storage {
 	@Override
 	public SetMultimap<UUID, String> getAllPronouns() {
         SetMultimap<UUID, String> out = MultimapBuilder.hashKeys().linkedHashSetValues().build();
-
-    	// if this is null then something is seriously wrong
-    	for (String uuid : Objects.requireNonNull(config.getSection("players")).getKeys()) {
-    		out.putAll(UuidUtils.fromString(uuid), config.getStringList("players." + uuid));
-		}
+        forEachPronouns(out::putAll);
 		return out;
 	}
+
+    @Override
+    public boolean forEachPronouns(BiConsumer<UUID, List<String>> consumer) {
+        Configuration players;
+        Collection<String> uuids;
+        synchronized (this) {
+            // if this is null then something is seriously wrong
+            players = Objects.requireNonNull(config.getSection("players"));
+            uuids = players.getKeys();
+        }
+        // reads one player at a time from the loaded file, rather than copying every player first.
+        // the lock is only held per player, so slow consumers don't hold up other reads and writes
+        for (String uuid : uuids) {
+            List<String> sets;
+            synchronized (this) {
+                sets = players.getStringList(uuid);
+            }
+            if (!sets.isEmpty()) {
+                consumer.accept(UuidUtils.fromString(uuid), sets);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean flush() {
+        return writer.flush();
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
 }
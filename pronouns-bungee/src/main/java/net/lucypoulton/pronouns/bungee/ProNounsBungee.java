@@ -20,13 +20,19 @@ package net.lucypoulton.pronouns.bungee;
 
 import net.lucypoulton.pronouns.ProNouns;
 import net.lucypoulton.pronouns.ProNounsPlatform;
+import net.lucypoulton.pronouns.config.ConnectionType;
 import net.lucypoulton.pronouns.storage.MysqlConnectionException;
+import net.lucypoulton.pronouns.storage.H2FileStorage;
+import net.lucypoulton.pronouns.storage.LogFileStorage;
+import net.lucypoulton.pronouns.storage.MappedFileStorage;
 import net.lucypoulton.pronouns.storage.MysqlFileStorage;
+import net.lucypoulton.pronouns.storage.ProxyProtocol;
 import net.lucypoulton.pronouns.storage.Storage;
 import net.md_5.bungee.api.plugin.Plugin;
 import org.bstats.bungeecord.Metrics;
 import org.bstats.charts.SimplePie;
 
+import java.io.File;
 import java.io.IOException;
 
 public final class ProNounsBungee extends Plugin {
@@ -63,19 +69,64 @@ public final class ProNounsBungee extends Plugin {
         ProNounsPlatform platform = new ProNounsBungeePlatform(this);
         plugin = new ProNouns(platform);
 
-        switch (configHandler.getConnectionType()) {
-            case YML:
-                storage = new BungeeYamlFileStorage(this);
-                break;
-            case MYSQL:
-                try {
-                    storage = new MysqlFileStorage(plugin);
-                    break;
-                } catch (MysqlConnectionException e) {
-                    return;
-                }
+        try {
+            storage = openStorage(configHandler.getConnectionType());
+            if (storage instanceof MappedFileStorage) {
+                importYamlIntoMapped((MappedFileStorage) storage);
+            }
+        } catch (IOException e) {
+            getLogger().severe("Failed to load pronoun storage! - " + e);
+            return;
         }
 
         plugin.onEnable();
+
+        getProxy().registerChannel(ProxyProtocol.CHANNEL);
+        String secret = configHandler.getProxySecret();
+        getProxy().getPluginManager().registerListener(this,
+            new ProxySyncListener(this, secret.isEmpty() ? null : new ProxyProtocol(secret)));
+    }
+
+    @Override
+    public void onDisable() {
+        if (plugin != null) {
+            plugin.onDisable();
+        }
+    }
+
+    /**
+     * Opens a new instance of a storage backend.
+     */
+    Storage openStorage(ConnectionType type) throws IOException {
+        try {
+            switch (type) {
+                case YML:
+                    return new BungeeYamlFileStorage(this);
+                case LOG:
+                    return new LogFileStorage(plugin);
+                case MAPPED:
+                    return new MappedFileStorage(plugin);
+                case H2:
+                    return new H2FileStorage(plugin);
+                case MYSQL:
+                    return new MysqlFileStorage(plugin);
+                default:
+                    throw new IOException("Unknown storage type " + type);
+            }
+        } catch (MysqlConnectionException e) {
+            throw new IOException("Failed to connect to the database", e);
+        }
+    }
+
+    /**
+     * Copies everything from datastore.yml into the memory-mapped storage the first time it is used.
+     */
+    private void importYamlIntoMapped(MappedFileStorage mapped) {
+        if (mapped.isEmpty() && new File(getDataFolder(), "datastore.yml").exists()) {
+            BungeeYamlFileStorage yaml = new BungeeYamlFileStorage(this);
+            getLogger().info("Copying players from datastore.yml...");
+            getLogger().info("Copied " + mapped.importFrom(yaml) + " players from datastore.yml.");
+            yaml.close();
+        }
     }
-}
\ No newline at end of file
+}
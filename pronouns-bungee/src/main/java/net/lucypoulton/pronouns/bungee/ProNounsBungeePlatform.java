@@ -1,6 +1,7 @@
 package net.lucypoulton.pronouns.bungee;
 
 import net.lucypoulton.pronouns.ProNounsPlatform;
+import net.lucypoulton.pronouns.config.ConnectionType;
 import net.lucypoulton.pronouns.storage.Storage;
 import net.lucypoulton.squirtgun.bungee.BungeePlatform;
 
@@ -23,6 +24,11 @@ public class ProNounsBungeePlatform extends BungeePlatform implements ProNounsPl
         return plugin.getStorage();
     }
 
+    @Override
+    public Storage openStorage(ConnectionType type) throws IOException {
+        return plugin.openStorage(type);
+    }
+
     @Override
     public void reloadConfig() {
         try {
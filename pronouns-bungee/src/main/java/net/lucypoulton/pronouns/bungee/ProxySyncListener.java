@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.bungee;
+
+import net.lucypoulton.pronouns.PronounHandlerImpl;
+import net.lucypoulton.pronouns.api.set.PronounSet;
+import net.lucypoulton.pronouns.storage.ProxyProtocol;
+import net.lucypoulton.squirtgun.platform.Platform;
+import net.lucypoulton.squirtgun.platform.scheduler.Task;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.Server;
+import net.md_5.bungee.api.event.PluginMessageEvent;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.event.EventHandler;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Serves pronouns to backend servers running ProNouns over plugin messaging, so they don't need to query storage
+ * themselves. Players' pronouns are pushed to a server when they connect to it, and to every server when they change.
+ * <p>
+ * Messages from players on the channel are always dropped, even when no secret is set and nothing is served.
+ */
+public class ProxySyncListener implements Listener {
+    private final ProNounsBungee pl;
+    private final PronounHandlerImpl handler;
+    private final @Nullable ProxyProtocol protocol;
+
+    /**
+     * @param protocol signs messages with the secret shared with backends, or null to not serve them
+     */
+    public ProxySyncListener(ProNounsBungee plugin, @Nullable ProxyProtocol protocol) {
+        this.pl = plugin;
+        this.handler = (PronounHandlerImpl) plugin.getPlugin().getPronounHandler();
+        this.protocol = protocol;
+        if (protocol != null) {
+            handler.addChangeListener(this::pushToAll);
+        }
+    }
+
+    @EventHandler
+    public void onServerConnected(ServerConnectedEvent event) {
+        if (protocol == null) {
+            return;
+        }
+        Server server = event.getServer();
+        UUID uuid = event.getPlayer().getUniqueId();
+        async(() -> server.sendData(ProxyProtocol.CHANNEL, push(uuid)));
+    }
+
+    @EventHandler
+    public void onPluginMessage(PluginMessageEvent event) {
+        if (!ProxyProtocol.CHANNEL.equals(event.getTag())) {
+            return;
+        }
+        // never passed on - these are only between the proxy and backends, and players must not be able to send them
+        event.setCancelled(true);
+        if (protocol == null || !(event.getSender() instanceof Server)) {
+            return;
+        }
+
+        Server server = (Server) event.getSender();
+        ProxyProtocol.Message message;
+        try {
+            message = protocol.decode(event.getData());
+        } catch (IOException e) {
+            pl.getLogger().warning("Ignoring an invalid message from a backend server - " + e);
+            return;
+        }
+
+        if (message.type() == ProxyProtocol.REQUEST) {
+            async(() -> server.sendData(ProxyProtocol.CHANNEL, push(message.uuid())));
+        } else if (message.type() == ProxyProtocol.SET) {
+            // the change listener pushes the new pronouns back out to every server
+            async(() -> handler.setPronounsFromStrings(message.uuid(), message.sets()));
+        }
+    }
+
+    private void pushToAll(UUID uuid) {
+        async(() -> {
+            byte[] message = push(uuid);
+            for (ServerInfo info : pl.getProxy().getServers().values()) {
+                // not queued - a server with nobody on it has nobody to show the pronouns to
+                info.sendData(ProxyProtocol.CHANNEL, message, false);
+            }
+        });
+    }
+
+    private byte[] push(UUID uuid) {
+        // sent in full, as stored strings can only be decoded with this proxy's own sets
+        Set<String> sets = handler.getPronouns(List.of(uuid)).getOrDefault(uuid, Set.of()).stream()
+            .map(PronounSet::toString)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+        return protocol.encode(ProxyProtocol.PUSH, uuid, sets);
+    }
+
+    private void async(Runnable action) {
+        Task.builder()
+            .async()
+            .action((Platform ignored) -> action.run())
+            .build().execute(pl.getPlugin().getPlatform());
+    }
+}
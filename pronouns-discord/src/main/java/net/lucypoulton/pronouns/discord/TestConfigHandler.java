@@ -58,6 +58,11 @@ public class TestConfigHandler implements ConfigHandler {
         return false;
     }
 
+    @Override
+    public int getMaxTabCompletions() {
+        return 50;
+    }
+
     @Override
     public SqlInfoContainer getSqlConnectionData() {
         return new SqlInfoContainer(properties.getProperty("sql.host", "localhost"),
@@ -67,6 +72,16 @@ public class TestConfigHandler implements ConfigHandler {
             properties.getProperty("sql.password"));
     }
 
+    @Override
+    public int getStorageThreads() {
+        return 4;
+    }
+
+    @Override
+    public int getStorageQueueSize() {
+        return 1024;
+    }
+
     @Override
     public boolean checkForUpdates() {
         return true;
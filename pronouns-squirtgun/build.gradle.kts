@@ -8,6 +8,15 @@ dependencies {
     implementation("net.kyori:adventure-api:4.9.2")
     compileOnly("com.google.guava:guava:30.1.1-jre")
     compileOnly("org.jetbrains:annotations:22.0.0")
+
+    testImplementation("org.junit.jupiter:junit-jupiter:5.8.1")
+    testImplementation("com.h2database:h2:2.1.214")
+    // compileOnly dependencies aren't on the test classpath, and the storages need guava at runtime
+    testImplementation("com.google.guava:guava:30.1.1-jre")
+}
+
+tasks.test {
+    useJUnitPlatform()
 }
 
 tasks.withType<ProcessResources> {
@@ -11,6 +11,8 @@ import net.lucypoulton.pronouns.command.PreviewNode;
 import net.lucypoulton.pronouns.command.SetOtherNode;
 import net.lucypoulton.pronouns.command.SetPronounsNode;
 import net.lucypoulton.pronouns.command.ShowPronounsNode;
+import net.lucypoulton.pronouns.command.admin.MigrateNode;
+import net.lucypoulton.pronouns.command.admin.StatusNode;
 import net.lucypoulton.pronouns.command.cloud.CloudInfoNode;
 import net.lucypoulton.pronouns.command.cloud.CloudSyncNode;
 import net.lucypoulton.pronouns.config.ConfigHandler;
@@ -40,6 +42,7 @@ import java.util.Objects;
 public class ProNouns extends SquirtgunPlugin<ProNounsPlatform> {
 
     private PronounHandlerImpl pronounHandler;
+    private MigrateNode migrateNode;
 
     private final SemanticVersion version;
 
@@ -76,6 +79,7 @@ public class ProNouns extends SquirtgunPlugin<ProNounsPlatform> {
         pronounHandler = new PronounHandlerImpl(this, getPlatform().getStorage());
 
         CloudPronounProvider provider = new CloudPronounProvider(this);
+        migrateNode = new MigrateNode(this, pronounHandler);
 
         pronounHandler.registerProvider(new BuiltinPronounProvider());
         pronounHandler.registerProvider(provider);
@@ -107,6 +111,12 @@ public class ProNouns extends SquirtgunPlugin<ProNounsPlatform> {
                 Condition.hasPermission("pronouns.cloud"),
                 new CloudInfoNode(provider),
                 new CloudSyncNode(provider, getConfigHandler())
+            ),
+            SubcommandNode.withHelp("admin",
+                "Server admin commands",
+                Condition.hasPermission("pronouns.admin"),
+                new StatusNode(pronounHandler),
+                migrateNode
             )
         );
         getPlatform().registerCommand(rootNode, getConfigHandler());
@@ -128,6 +138,18 @@ public class ProNouns extends SquirtgunPlugin<ProNounsPlatform> {
         getPlatform().getEventManager().register(new FilteredSetAttemptListener(this.getPlatform()));
     }
 
+    public void onDisable() {
+        if (migrateNode != null) {
+            migrateNode.cancel();
+        }
+        if (pronounHandler != null) {
+            pronounHandler.shutdown();
+        }
+        if (getPlatform().getStorage() != null) {
+            getPlatform().getStorage().close();
+        }
+    }
+
     public PronounHandler getPronounHandler() {
         return pronounHandler;
     }
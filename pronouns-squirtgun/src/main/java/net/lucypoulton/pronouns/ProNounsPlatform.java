@@ -1,13 +1,26 @@
 package net.lucypoulton.pronouns;
 
 import net.lucypoulton.pronouns.config.ConfigHandler;
+import net.lucypoulton.pronouns.config.ConnectionType;
 import net.lucypoulton.pronouns.storage.Storage;
 import net.lucypoulton.squirtgun.platform.Platform;
 
+import java.io.IOException;
+
 public interface ProNounsPlatform extends Platform {
     ConfigHandler getConfigHandler();
 
     Storage getStorage();
 
+    /**
+     * Opens a new instance of a storage backend, such as for migrating between backends.
+     * The caller is responsible for closing it. Don't use this to open the backend that is already in use.
+     *
+     * @throws IOException if the backend couldn't be opened, or isn't available on this platform
+     */
+    default Storage openStorage(ConnectionType type) throws IOException {
+        throw new IOException(type.name().toLowerCase() + " storage isn't available on " + name());
+    }
+
     void reloadConfig();
 }
@@ -18,96 +18,366 @@
 
 package net.lucypoulton.pronouns;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.kyori.adventure.text.event.ClickEvent;
 import net.lucypoulton.pronouns.api.PronounHandler;
 import net.lucypoulton.pronouns.api.SetPronounsEvent;
 import net.lucypoulton.pronouns.api.StringUtils;
 import net.lucypoulton.pronouns.api.provider.PronounProvider;
-import net.lucypoulton.pronouns.api.set.ParsedPronounSet;
 import net.lucypoulton.pronouns.api.set.PronounSet;
-import net.lucypoulton.pronouns.api.set.SpecialPronounSet;
+import net.lucypoulton.pronouns.filter.CompiledFilter;
+import net.lucypoulton.pronouns.storage.ProxyStorage;
 import net.lucypoulton.pronouns.storage.Storage;
+import net.lucypoulton.pronouns.storage.StorageExecutor;
 import net.lucypoulton.squirtgun.format.FormatProvider;
 import net.lucypoulton.squirtgun.platform.audience.SquirtgunPlayer;
 import net.lucypoulton.squirtgun.platform.event.EventHandler;
 import net.lucypoulton.squirtgun.platform.event.PluginReloadEvent;
-import net.lucypoulton.squirtgun.util.Pair;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.IdentityHashMap;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toSet;
 
 public class PronounHandlerImpl implements PronounHandler {
     private final Storage storage;
-    private final List<Pattern> filterPatterns = new ArrayList<>();
+    private volatile CompiledFilter filter = CompiledFilter.EMPTY;
 
     public Storage getStorage() {
         return storage;
     }
 
     private final ProNouns pl;
-    private final Set<PronounProvider> providers = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ProviderRegistry providers = new ProviderRegistry();
+
+    // resolved sets per player, so repeated lookups don't re-run the filter and parser. Bounded and expiring
+    // like the storages' PlayerCache, so players who have left don't stay in memory
+    private final Cache<UUID, Set<PronounSet>> resolvedCache = CacheBuilder.newBuilder()
+        .maximumSize(10_000)
+        .expireAfterAccess(30, TimeUnit.MINUTES)
+        .build();
+    // bumped on invalidation so a lookup that raced with a write doesn't cache a stale result. Each player's
+    // generation is the sum of the global one, bumped when everything is invalidated, and one of a fixed
+    // number of stripes picked by their UUID, so a write only disturbs lookups for players sharing its stripe
+    private static final int GENERATION_STRIPES = 256;
+    private final AtomicLong cacheGeneration = new AtomicLong();
+    private final AtomicLongArray stripeGenerations = new AtomicLongArray(GENERATION_STRIPES);
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final List<Consumer<UUID>> changeListeners = new CopyOnWriteArrayList<>();
+
+    private final StorageExecutor ioExecutor;
 
     public PronounHandlerImpl(ProNouns pl, Storage storage) {
         this.pl = pl;
         this.storage = storage;
-        pl.getPlatform().getEventManager().register(EventHandler.executes(PluginReloadEvent.class, e -> reloadFilterPatterns()));
+        this.ioExecutor = new StorageExecutor(Math.max(1, pl.getConfigHandler().getStorageThreads()),
+            Math.max(1, pl.getConfigHandler().getStorageQueueSize()));
+        pl.getPlatform().getEventManager().register(EventHandler.executes(PluginReloadEvent.class, e -> {
+            reloadFilterPatterns();
+            invalidateCache();
+        }));
         reloadFilterPatterns();
+        storage.addChangeListener(new Storage.ChangeListener() {
+            @Override
+            public void playerChanged(UUID uuid) {
+                invalidateCache(uuid);
+            }
+
+            @Override
+            public void allChanged() {
+                invalidateCache();
+            }
+        });
     }
 
-    private void reloadFilterPatterns() {
-        filterPatterns.clear();
-        for (String pattern : pl.getConfigHandler().getFilterPatterns()) {
-            filterPatterns.add(Pattern.compile(pattern));
+    /**
+     * Stops the background I/O threads, waiting briefly for queued work to finish.
+     */
+    public void shutdown() {
+        try {
+            if (!ioExecutor.shutdown(5, TimeUnit.SECONDS)) {
+                pl.getPlatform().getLogger().warning("Timed out waiting for pending pronoun lookups to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    private void reloadFilterPatterns() {
+        filter = CompiledFilter.compile(pl.getConfigHandler().getFilterPatterns(), pl.getPlatform().getLogger());
+    }
+
+    /**
+     * Stores the player's pronouns, waiting until they have been written.
+     *
+     * @throws RejectedExecutionException if too many storage operations are already queued
+     */
     @Override
     public void setUserPronouns(SquirtgunPlayer player, @NotNull Set<PronounSet> set) {
         if (pl.getPlatform().getEventManager().dispatch(new SetPronounsEvent(player, set)).successful()) {
+            final UUID uuid = player.getUuid();
+            await(ioExecutor.submit(uuid, () -> store(uuid, set)));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> setUserPronounsAsync(SquirtgunPlayer player, @NotNull Set<PronounSet> set) {
+        if (!pl.getPlatform().getEventManager().dispatch(new SetPronounsEvent(player, set)).successful()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final UUID uuid = player.getUuid();
+        return ioExecutor.submit(uuid, () -> store(uuid, set));
+    }
 
-            storage.setPronouns(player.getUuid(),
-                set.stream().map(Object::toString).collect(Collectors.toCollection(LinkedHashSet::new)));
+    /**
+     * Stores a player's pronouns given as full sets, such as those sent by a backend server.
+     * This skips {@link SetPronounsEvent}, which the backend will have fired itself.
+     *
+     * @param sets sets in the form given by {@link PronounSet#toString()}
+     */
+    public void setPronounsFromStrings(UUID uuid, Set<String> sets) {
+        ioExecutor.submit(uuid, () -> store(uuid, decode(sets))).whenComplete((ignored, error) -> {
+            if (error != null) {
+                pl.getPlatform().getLogger().warning("Failed to store pronouns sent by a backend server for " + uuid + " - " + error);
+            }
+        });
+    }
+
+    /**
+     * Waits for a storage operation queued by one of the synchronous methods. Going through the queue keeps it
+     * in order with the player's other operations, such as an earlier asynchronous change.
+     *
+     * @throws RejectedExecutionException if the operation couldn't be queued
+     */
+    private static void await(CompletableFuture<Void> operation) {
+        try {
+            operation.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
     }
 
+    private void store(UUID uuid, Set<PronounSet> set) {
+        final PronounSetCodec codec = providers.snapshot().codec();
+        // the proxy decodes with its own codec, which may not know this server's keys
+        final Function<PronounSet, String> encoder = storage instanceof ProxyStorage ? PronounSet::toString : codec::encode;
+        storage.setPronouns(uuid,
+            set.stream().map(encoder).collect(Collectors.toCollection(LinkedHashSet::new)));
+        invalidateCache(uuid);
+    }
+
     @Override
     public Set<PronounSet> getAllPronouns() {
-        return providers.stream().flatMap(x -> x.get().stream()).collect((toSet()));
+        return providers.snapshot().sets();
+    }
+
+    /**
+     * Gets the current snapshot of every known set, for callers that want to cache data derived from it.
+     */
+    public ProviderRegistry.Snapshot getProviderSnapshot() {
+        return providers.snapshot();
     }
 
     @Override
     public @NotNull Set<PronounSet> getPronouns(SquirtgunPlayer player) {
-        return storage.getPronouns(player.getUuid()).stream()
-            .map(this::parse)
-            .flatMap(result -> result.results().stream())
-            .collect(Collectors.toCollection(LinkedHashSet::new));
+        final UUID uuid = player.getUuid();
+        Set<PronounSet> cached = resolvedCache.getIfPresent(uuid);
+        if (cached != null) {
+            cacheHits.increment();
+            return cached;
+        }
+        cacheMisses.increment();
+
+        long generation = generation(uuid);
+        Set<String> stored = storage.getPronouns(uuid);
+        // not known yet, such as while waiting for the proxy - the storage says when it is
+        return stored == null ? Set.of() : resolve(uuid, stored, generation);
     }
 
     @Override
-    public void clearUserPronouns(SquirtgunPlayer player) {
-        storage.clearPronouns(player.getUuid());
+    public @NotNull Map<UUID, Set<PronounSet>> getPronouns(Collection<UUID> players) {
+        Map<UUID, Set<PronounSet>> out = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+        for (UUID uuid : players) {
+            Set<PronounSet> cached = resolvedCache.getIfPresent(uuid);
+            if (cached != null) {
+                out.put(uuid, cached);
+            } else {
+                missing.add(uuid);
+            }
+        }
+        cacheHits.add(out.size());
+        cacheMisses.add(missing.size());
+        if (missing.isEmpty()) {
+            return out;
+        }
+
+        Map<UUID, Long> generations = new HashMap<>();
+        for (UUID uuid : missing) {
+            generations.put(uuid, generation(uuid));
+        }
+        storage.getPronouns(missing).forEach((uuid, stored) -> out.put(uuid, resolve(uuid, stored, generations.get(uuid))));
+        return out;
     }
 
-    private int equalityScore(List<String> input, PronounSet two) {
-        if (two instanceof SpecialPronounSet && input.get(0).equalsIgnoreCase(two.nameForConcatenation())) {
-            return 7;
+    @Override
+    public @Nullable Set<PronounSet> getPronounsIfCached(SquirtgunPlayer player) {
+        final UUID uuid = player.getUuid();
+        Set<PronounSet> cached = resolvedCache.getIfPresent(uuid);
+        if (cached != null) {
+            cacheHits.increment();
+            return cached;
         }
-        int i = 0;
-        String[] setArray = two.asArray();
-        while (i < input.size() && i < 6 && input.get(i).equalsIgnoreCase(setArray[i])) {
-            i++;
+
+        long generation = generation(uuid);
+        Set<String> stored = storage.getCachedPronouns(uuid);
+        return stored == null ? null : resolve(uuid, stored, generation);
+    }
+
+    @Override
+    public CompletableFuture<Set<PronounSet>> getPronounsAsync(SquirtgunPlayer player) {
+        Set<PronounSet> cached = resolvedCache.getIfPresent(player.getUuid());
+        if (cached != null) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(cached);
         }
-        return i;
+        return ioExecutor.submit(player.getUuid(), () -> getPronouns(player));
+    }
+
+    /**
+     * Decodes a player's stored sets, caching the result unless the cache was invalidated since
+     * the given generation. Known sets are looked up directly, anything else is parsed.
+     */
+    private Set<PronounSet> resolve(UUID uuid, Set<String> stored, long generation) {
+        Set<PronounSet> resolved = Collections.unmodifiableSet(decode(stored));
+        if (generation(uuid) == generation) {
+            resolvedCache.put(uuid, resolved);
+        }
+        return resolved;
+    }
+
+    private Set<PronounSet> decode(Collection<String> stored) {
+        final PronounSetCodec codec = providers.snapshot().codec();
+        final Set<PronounSet> decoded = new LinkedHashSet<>();
+        for (String entry : stored) {
+            PronounSet set = codec.decode(entry);
+            if (set != null) {
+                decoded.add(set);
+            } else {
+                decoded.addAll(parse(entry).results());
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Clears the player's pronouns, waiting until they have been cleared.
+     *
+     * @throws RejectedExecutionException if too many storage operations are already queued
+     */
+    @Override
+    public void clearUserPronouns(SquirtgunPlayer player) {
+        final UUID uuid = player.getUuid();
+        await(ioExecutor.submit(uuid, () -> {
+            storage.clearPronouns(uuid);
+            invalidateCache(uuid);
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Void> clearUserPronounsAsync(SquirtgunPlayer player) {
+        final UUID uuid = player.getUuid();
+        return ioExecutor.submit(uuid, () -> {
+            storage.clearPronouns(uuid);
+            invalidateCache(uuid);
+        });
+    }
+
+    private static int stripe(UUID uuid) {
+        return (uuid.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    /**
+     * @return the player's cache generation, which changes whenever their cached sets are invalidated
+     */
+    private long generation(UUID uuid) {
+        return cacheGeneration.get() + stripeGenerations.get(stripe(uuid));
+    }
+
+    private void invalidateCache(UUID uuid) {
+        stripeGenerations.incrementAndGet(stripe(uuid));
+        resolvedCache.invalidate(uuid);
+        changeListeners.forEach(listener -> listener.accept(uuid));
+    }
+
+    /**
+     * Registers a listener to be called with a player's UUID whenever their pronouns change, whether through
+     * this handler or by another server sharing its storage.
+     */
+    public void addChangeListener(Consumer<UUID> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Drops every resolved set from the cache, so they will be re-parsed from storage on next access.
+     */
+    public void invalidateCache() {
+        cacheGeneration.incrementAndGet();
+        resolvedCache.invalidateAll();
+    }
+
+    /**
+     * @return the number of {@link #getPronouns(SquirtgunPlayer)} calls served from the cache
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the number of {@link #getPronouns(SquirtgunPlayer)} calls that had to go to storage
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return the number of asynchronous storage operations queued or running
+     */
+    public int getStorageQueueDepth() {
+        return ioExecutor.getQueueDepth();
+    }
+
+    /**
+     * @return the number of players whose resolved sets are currently cached
+     */
+    public int getCacheSize() {
+        return (int) resolvedCache.size();
     }
 
     @Override
@@ -115,7 +385,7 @@ public class PronounHandlerImpl implements PronounHandler {
         final List<String> split = StringUtils.splitSet(input);
 
         if (pl.getConfigHandler().filterEnabled() && enforceFilter
-            && filterPatterns.stream().anyMatch(pattern -> pattern.matcher(input).find())) {
+            && filter.matches(input)) {
             return new ParseResult(false, Set.of(), List.of(),
                 pl.getConfigHandler().formatMain("You can't use that set."));
         }
@@ -125,7 +395,7 @@ public class PronounHandlerImpl implements PronounHandler {
         int i = 0;
 
         while (split.size() - i >= 6) {
-            out.add(new ParsedPronounSet(split.get(i),
+            out.add(PronounSet.of(split.get(i),
                 split.get(i + 1),
                 split.get(i + 2),
                 split.get(i + 3),
@@ -136,28 +406,33 @@ public class PronounHandlerImpl implements PronounHandler {
         }
 
         final List<Set<PronounSet>> ambiguities = new ArrayList<>();
+        final List<String> folded = split.stream().map(x -> x.toLowerCase(Locale.ROOT)).collect(toList());
+        final PronounSetIndex index = providers.snapshot().index();
         while (i < split.size()) {
-            String pronoun = split.get(i);
-            int finalI = i;
-            List<Pair<PronounSet, Integer>> sets = providers.stream()
-                .flatMap(provider -> provider.get().stream())
-                .filter(set -> set.nameForConcatenation().equalsIgnoreCase(pronoun))
-                .map(set -> new Pair<>(set, equalityScore(split.subList(finalI, split.size()), set)))
-                .collect(toList());
-
-            int max = sets.stream().mapToInt(Pair::value).max().orElse(0);
+            List<String> remaining = folded.subList(i, folded.size());
+
+            int max = 0;
+            Set<PronounSet> potentialSets = new LinkedHashSet<>();
+            for (PronounSetIndex.Candidate candidate : index.candidates(remaining.get(0))) {
+                int score = candidate.score(remaining);
+                if (score > max) {
+                    max = score;
+                    potentialSets.clear();
+                }
+                if (score == max) {
+                    potentialSets.add(candidate.set());
+                }
+            }
+
             if (max == 0) {
                 i++;
                 continue;
             }
-            Set<PronounSet> potentialSets = sets.stream().filter(x -> x.value() == max)
-                .map(Pair::key)
-                .collect(Collectors.toSet());
             i += max;
             if (potentialSets.size() != 1) {
                 ambiguities.add(potentialSets);
             }
-            out.add(potentialSets.stream().findFirst().orElseThrow());
+            out.add(potentialSets.iterator().next());
         }
 
         if (out.isEmpty()) {
@@ -175,6 +450,14 @@ public class PronounHandlerImpl implements PronounHandler {
 
     @Override
     public void registerProvider(PronounProvider provider) {
-        this.providers.add(provider);
+        if (providers.register(provider)) {
+            invalidateCache();
+        }
+    }
+
+    @Override
+    public void refreshProviders() {
+        providers.refresh();
+        invalidateCache();
     }
 }
\ No newline at end of file
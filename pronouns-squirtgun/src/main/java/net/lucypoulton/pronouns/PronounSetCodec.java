@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns;
+
+import net.lucypoulton.pronouns.api.set.PronounSet;
+import net.lucypoulton.pronouns.api.set.SpecialPronounSet;
+import net.lucypoulton.pronouns.provider.BuiltinPronounProvider;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Converts pronoun sets to and from the strings kept in storage. Built once per {@link ProviderRegistry.Snapshot}.
+ * <p>
+ * A built-in set is stored as a short key - a slash followed by its subjective and objective forms,
+ * such as {@code /she/her}, or its name for special sets. Every other set is stored in full. Only the built-in
+ * sets get keys because they are the same on every server and never change, whereas other known sets depend on
+ * config and the cloud, so a key for one of them could later become ambiguous or mean something else.
+ * <p>
+ * Keys start with a slash so they can never clash with a full set, and so that anything unable to decode them
+ * (older versions, or a key whose set has since been removed) can still parse them as normal input.
+ */
+final class PronounSetCodec {
+
+    private final Map<PronounSet, String> keys;
+    // both short keys and case-folded full strings of known sets
+    private final Map<String, PronounSet> sets;
+
+    private PronounSetCodec(Map<PronounSet, String> keys, Map<String, PronounSet> sets) {
+        this.keys = keys;
+        this.sets = sets;
+    }
+
+    static PronounSetCodec build(Collection<PronounSet> known) {
+        Map<String, PronounSet> sets = new HashMap<>();
+        for (PronounSet set : known) {
+            sets.putIfAbsent(set.toString().toLowerCase(Locale.ROOT), set);
+        }
+
+        Map<PronounSet, String> keys = new HashMap<>();
+        for (PronounSet set : BuiltinPronounProvider.SETS) {
+            String key = shortKey(set);
+            keys.put(set, key);
+            // a built-in key always means the built-in set, whatever else is known
+            sets.put(key, set);
+        }
+        return new PronounSetCodec(keys, sets);
+    }
+
+    private static String shortKey(PronounSet set) {
+        String name = set instanceof SpecialPronounSet ? set.toString() : set.subjective() + "/" + set.objective();
+        return "/" + name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the string to store for a set
+     */
+    String encode(PronounSet set) {
+        String key = keys.get(set);
+        return key == null ? set.toString() : key;
+    }
+
+    /**
+     * Looks up a stored string without parsing it.
+     *
+     * @return the known set it refers to, or null if it needs to be parsed
+     */
+    @Nullable PronounSet decode(String stored) {
+        return sets.get(stored.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns;
+
+import net.lucypoulton.pronouns.api.set.PronounSet;
+import net.lucypoulton.pronouns.api.set.SpecialPronounSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A case-folded lookup table from a set's name to every known set with that name.
+ * Built once per {@link ProviderRegistry.Snapshot}.
+ */
+final class PronounSetIndex {
+
+    /**
+     * A pronoun set along with its lower-cased forms, so scoring doesn't need to fold case again.
+     */
+    static final class Candidate {
+        private final PronounSet set;
+        private final String[] forms;
+        private final boolean special;
+
+        private Candidate(PronounSet set) {
+            this.set = set;
+            this.special = set instanceof SpecialPronounSet;
+            String[] forms = set.asArray();
+            for (int i = 0; i < forms.length; i++) {
+                forms[i] = forms[i].toLowerCase(Locale.ROOT);
+            }
+            this.forms = forms;
+        }
+
+        PronounSet set() {
+            return set;
+        }
+
+        /**
+         * Scores how well this set matches the start of some lower-cased input.
+         * A special set whose name matched scores 7, otherwise the score is the number of leading forms that match.
+         */
+        int score(List<String> input) {
+            if (special) {
+                return 7;
+            }
+            int i = 0;
+            while (i < input.size() && i < forms.length && input.get(i).equals(forms[i])) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    private final Map<String, List<Candidate>> byName;
+
+    private PronounSetIndex(Map<String, List<Candidate>> byName) {
+        this.byName = byName;
+    }
+
+    static PronounSetIndex build(Collection<PronounSet> sets) {
+        Map<String, List<Candidate>> byName = new HashMap<>();
+        for (PronounSet set : sets) {
+            byName.computeIfAbsent(set.nameForConcatenation().toLowerCase(Locale.ROOT), x -> new ArrayList<>())
+                .add(new Candidate(set));
+        }
+        return new PronounSetIndex(byName);
+    }
+
+    /**
+     * Gets every set whose name matches, ignoring case.
+     *
+     * @param foldedName the name to look up, already lower-cased with {@link Locale#ROOT}
+     */
+    List<Candidate> candidates(String foldedName) {
+        return byName.getOrDefault(foldedName, List.of());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns;
+
+import net.lucypoulton.pronouns.api.provider.PronounProvider;
+import net.lucypoulton.pronouns.api.set.PronounSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Holds the registered {@link PronounProvider}s, and an immutable snapshot of every set they provide.
+ * The snapshot is only rebuilt when a provider is registered or reports that its sets have changed,
+ * so readers never copy or lock anything.
+ */
+public final class ProviderRegistry {
+
+    /**
+     * Every known set at a point in time. Each rebuild gets a higher version, so anything derived from
+     * a snapshot can cheaply check whether it's out of date.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final List<PronounProvider> providers;
+        private final Set<PronounSet> sets;
+        private final PronounSetIndex index;
+        private final PronounSetCodec codec;
+
+        private Snapshot(long version, List<PronounProvider> providers) {
+            this.version = version;
+            this.providers = providers;
+
+            Set<PronounSet> sets = new LinkedHashSet<>();
+            for (PronounProvider provider : providers) {
+                Set<PronounSet> provided = provider.get();
+                if (provided != null) {
+                    sets.addAll(provided);
+                }
+            }
+            this.sets = Collections.unmodifiableSet(sets);
+            this.index = PronounSetIndex.build(this.sets);
+            this.codec = PronounSetCodec.build(this.sets);
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public List<PronounProvider> providers() {
+            return providers;
+        }
+
+        /**
+         * @return every set known to any provider, in registration order. This set is unmodifiable
+         */
+        public Set<PronounSet> sets() {
+            return sets;
+        }
+
+        PronounSetIndex index() {
+            return index;
+        }
+
+        PronounSetCodec codec() {
+            return codec;
+        }
+    }
+
+    private final List<PronounProvider> providers = new ArrayList<>();
+    private volatile Snapshot snapshot = new Snapshot(0, List.of());
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Adds a provider and rebuilds the snapshot. Registering the same provider twice does nothing.
+     *
+     * @return whether the provider was added
+     */
+    public synchronized boolean register(PronounProvider provider) {
+        for (PronounProvider existing : providers) {
+            if (existing == provider) {
+                return false;
+            }
+        }
+        providers.add(provider);
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Rebuilds the snapshot from every provider's current sets.
+     */
+    public synchronized void refresh() {
+        rebuild();
+    }
+
+    private void rebuild() {
+        snapshot = new Snapshot(snapshot.version() + 1, List.copyOf(providers));
+    }
+}
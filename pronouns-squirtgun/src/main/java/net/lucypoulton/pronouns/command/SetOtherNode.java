@@ -46,7 +46,7 @@ public class SetOtherNode extends AbstractNode<PermissionHolder> {
         pl = plugin;
         playerArg = new OnlinePlayerArgument("player", "The player to set pronouns for",
                 false, pl.getPlatform());
-        setsArg = new PronounSetArgument(pl.getPronounHandler());
+        setsArg = new PronounSetArgument(pl.getPronounHandler(), pl.getConfigHandler());
     }
 
     @Override
@@ -45,7 +45,7 @@ public class SetPronounsNode extends AbstractNode<SquirtgunPlayer> {
     public SetPronounsNode(ProNouns plugin) {
         super("set", "Sets your pronouns.", Condition.isPlayer());
         pl = plugin;
-        sets = new PronounSetArgument(pl.getPronounHandler());
+        sets = new PronounSetArgument(pl.getPronounHandler(), pl.getConfigHandler());
     }
 
     @Override
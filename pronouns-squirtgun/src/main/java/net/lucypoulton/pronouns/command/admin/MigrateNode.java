@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.command.admin;
+
+import net.kyori.adventure.text.Component;
+import net.lucypoulton.pronouns.PronounHandlerImpl;
+import net.lucypoulton.pronouns.ProNouns;
+import net.lucypoulton.pronouns.command.arguments.StorageTypeArgument;
+import net.lucypoulton.pronouns.config.ConnectionType;
+import net.lucypoulton.pronouns.storage.Storage;
+import net.lucypoulton.pronouns.storage.StorageMigration;
+import net.lucypoulton.squirtgun.command.argument.CommandArgument;
+import net.lucypoulton.squirtgun.command.condition.Condition;
+import net.lucypoulton.squirtgun.command.context.CommandContext;
+import net.lucypoulton.squirtgun.command.node.AbstractNode;
+import net.lucypoulton.squirtgun.format.FormatProvider;
+import net.lucypoulton.squirtgun.platform.Platform;
+import net.lucypoulton.squirtgun.platform.audience.PermissionHolder;
+import net.lucypoulton.squirtgun.platform.scheduler.Task;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MigrateNode extends AbstractNode<PermissionHolder> {
+
+    private final ProNouns plugin;
+    private final PronounHandlerImpl handler;
+    private final StorageTypeArgument fromArg = new StorageTypeArgument("from", "The storage to copy players from");
+    private final StorageTypeArgument toArg = new StorageTypeArgument("to", "The storage to copy players to");
+
+    private final AtomicBoolean busy = new AtomicBoolean();
+    // null while storages are being opened, before the migration itself has started
+    private volatile StorageMigration running;
+
+    public MigrateNode(ProNouns plugin, PronounHandlerImpl handler) {
+        super("migrate", "Copies every player's pronouns from one storage to another", Condition.alwaysTrue());
+        this.plugin = plugin;
+        this.handler = handler;
+    }
+
+    @Override
+    public @NotNull List<CommandArgument<?>> getArguments() {
+        return List.of(fromArg, toArg);
+    }
+
+    @Override
+    public @Nullable Component execute(CommandContext context) {
+        final FormatProvider fmt = context.getFormat();
+        final ConnectionType from = context.getArgumentValue(fromArg);
+        final ConnectionType to = context.getArgumentValue(toArg);
+
+        if (from == null || to == null) {
+            return fmt.getPrefix().append(fmt.formatMain("Storage must be one of yml, mysql, h2, log or mapped."));
+        }
+        if (from == to) {
+            return fmt.getPrefix().append(fmt.formatMain("The storages to migrate from and to must be different."));
+        }
+        if (!busy.compareAndSet(false, true)) {
+            StorageMigration current = running;
+            return fmt.getPrefix()
+                .append(fmt.formatMain("A migration is already running"))
+                .append(current == null ? Component.empty() : fmt.formatMain(" - ")
+                    .append(fmt.formatAccent(current.getCopied() + " players"))
+                    .append(fmt.formatMain(" copied so far, at "))
+                    .append(fmt.formatAccent(current.getPlayersPerSecond() + " players/s")))
+                .append(fmt.formatMain("."));
+        }
+
+        Task.builder()
+            .async()
+            .action((Platform ignored) -> migrate(from, to))
+            .build().execute(plugin.getPlatform());
+        return fmt.getPrefix().append(fmt.formatMain("Migration started - see the console for progress."));
+    }
+
+    private void migrate(ConnectionType from, ConnectionType to) {
+        String description = from.name().toLowerCase(Locale.ROOT) + " to " + to.name().toLowerCase(Locale.ROOT);
+        Storage source = null;
+        Storage target = null;
+        try {
+            source = open(from);
+            target = open(to);
+            running = new StorageMigration(source, target,
+                plugin.getPlatform().getConfigPath(plugin).resolve("migration-" + description.replace(' ', '-') + ".checkpoint"),
+                description, plugin.getPlatform().getLogger());
+            running.run();
+            if (target == plugin.getPlatform().getStorage()) {
+                handler.invalidateCache();
+            }
+        } catch (IOException e) {
+            plugin.getPlatform().getLogger().severe("Failed to open storage for migration from " + description + " - " + e);
+        } finally {
+            // storages opened just for the migration are closed again, the one in use is left alone
+            if (source != null && source != plugin.getPlatform().getStorage()) {
+                source.close();
+            }
+            if (target != null && target != plugin.getPlatform().getStorage()) {
+                target.close();
+            }
+            running = null;
+            busy.set(false);
+        }
+    }
+
+    /**
+     * Uses the storage already in use where possible, as most storages can't be opened twice.
+     */
+    private Storage open(ConnectionType type) throws IOException {
+        if (type == plugin.getConfigHandler().getConnectionType()) {
+            return plugin.getPlatform().getStorage();
+        }
+        return plugin.getPlatform().openStorage(type);
+    }
+
+    /**
+     * Stops any running migration at its next player. Called when the plugin is disabled.
+     */
+    public void cancel() {
+        StorageMigration current = running;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.command.admin;
+
+import com.google.common.cache.CacheStats;
+import net.kyori.adventure.text.Component;
+import net.lucypoulton.pronouns.PronounHandlerImpl;
+import net.lucypoulton.pronouns.storage.MysqlFileStorage;
+import net.lucypoulton.pronouns.storage.PlayerCache;
+import net.lucypoulton.squirtgun.command.condition.Condition;
+import net.lucypoulton.squirtgun.command.context.CommandContext;
+import net.lucypoulton.squirtgun.command.node.AbstractNode;
+import net.lucypoulton.squirtgun.format.FormatProvider;
+import net.lucypoulton.squirtgun.platform.audience.PermissionHolder;
+import org.jetbrains.annotations.Nullable;
+
+public class StatusNode extends AbstractNode<PermissionHolder> {
+
+    private final PronounHandlerImpl handler;
+
+    public StatusNode(PronounHandlerImpl handler) {
+        super("status", "Shows internal cache and storage statistics", Condition.alwaysTrue());
+        this.handler = handler;
+    }
+
+    @Override
+    public @Nullable Component execute(CommandContext context) {
+        final FormatProvider fmt = context.getFormat();
+        Component out = fmt.getPrefix()
+            .append(fmt.formatMain("Pronoun cache: "))
+            .append(fmt.formatAccent(handler.getCacheSize() + " players"))
+            .append(fmt.formatMain(", "))
+            .append(fmt.formatAccent(handler.getCacheHits() + " hits"))
+            .append(fmt.formatMain(", "))
+            .append(fmt.formatAccent(handler.getCacheMisses() + " misses"))
+            .append(Component.newline())
+            .append(fmt.getPrefix())
+            .append(fmt.formatMain("Storage queue: "))
+            .append(fmt.formatAccent(handler.getStorageQueueDepth() + " operations"));
+
+        final PlayerCache storageCache = handler.getStorage().getCache();
+        if (storageCache != null) {
+            final CacheStats stats = storageCache.stats();
+            out = out.append(Component.newline())
+                .append(fmt.getPrefix())
+                .append(fmt.formatMain("Storage cache: "))
+                .append(fmt.formatAccent(storageCache.size() + " players"))
+                .append(fmt.formatMain(", "))
+                .append(fmt.formatAccent(stats.hitCount() + " hits"))
+                .append(fmt.formatMain(", "))
+                .append(fmt.formatAccent(stats.missCount() + " misses"))
+                .append(fmt.formatMain(", "))
+                .append(fmt.formatAccent(stats.evictionCount() + " evictions"));
+        }
+
+        if (handler.getStorage() instanceof MysqlFileStorage) {
+            final MysqlFileStorage mysql = (MysqlFileStorage) handler.getStorage();
+            final long batches = mysql.getPrefetchBatches();
+            out = out.append(Component.newline())
+                .append(fmt.getPrefix())
+                .append(fmt.formatMain("Join prefetch: "))
+                .append(fmt.formatAccent(mysql.getPrefetchQueueDepth() + " queued"))
+                .append(fmt.formatMain(", "))
+                .append(fmt.formatAccent(batches + " batches"))
+                .append(fmt.formatMain(", "))
+                .append(fmt.formatAccent((batches == 0 ? 0 : mysql.getPrefetchedPlayers() / batches) + " average"))
+                .append(fmt.formatMain(", "))
+                .append(fmt.formatAccent(mysql.getLargestPrefetchBatch() + " largest"))
+                .append(Component.newline())
+                .append(fmt.getPrefix())
+                .append(fmt.formatMain("Unwritten changes: "))
+                .append(fmt.formatAccent(mysql.getPendingWriteCount() + " queued"))
+                .append(fmt.formatMain(", "))
+                .append(fmt.formatAccent(mysql.getOutboxSize() + " in outbox"));
+
+            if (mysql.hasReadReplica()) {
+                out = out.append(Component.newline())
+                    .append(fmt.getPrefix())
+                    .append(fmt.formatMain("Read replica: "))
+                    .append(fmt.formatAccent(mysql.isReadReplicaAvailable() ? "in use" : "unavailable"))
+                    .append(fmt.formatMain(", "))
+                    .append(fmt.formatAccent(mysql.getReplicaReads() + " reads"))
+                    .append(fmt.formatMain(", "))
+                    .append(fmt.formatAccent(mysql.getReplicaFailovers() + " failovers"));
+            }
+        }
+        return out;
+    }
+}
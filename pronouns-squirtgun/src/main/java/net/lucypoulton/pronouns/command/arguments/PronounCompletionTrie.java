@@ -0,0 +1,123 @@
+package net.lucypoulton.pronouns.command.arguments;
+
+import net.lucypoulton.pronouns.api.set.PronounSet;
+import net.lucypoulton.pronouns.api.set.SpecialPronounSet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A case-insensitive prefix tree over the subjective and objective forms of every known set,
+ * used to build tab completions without walking every set on each keystroke.
+ */
+final class PronounCompletionTrie {
+
+    private static final class Node {
+        private final TreeMap<Character, Node> children = new TreeMap<>();
+        private String form;
+        private final List<PronounSet> asSubjective = new ArrayList<>(1);
+        private final List<PronounSet> asObjective = new ArrayList<>(1);
+    }
+
+    private final Node root = new Node();
+
+    PronounCompletionTrie(Collection<PronounSet> sets) {
+        for (PronounSet set : sets) {
+            if (set instanceof SpecialPronounSet) {
+                insert(set.nameForConcatenation()).asSubjective.add(set);
+            } else {
+                insert(set.subjective()).asSubjective.add(set);
+                insert(set.objective()).asObjective.add(set);
+            }
+        }
+    }
+
+    private Node insert(String form) {
+        Node node = root;
+        String folded = form.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < folded.length(); i++) {
+            node = node.children.computeIfAbsent(folded.charAt(i), x -> new Node());
+        }
+        if (node.form == null) {
+            node.form = form;
+        }
+        return node;
+    }
+
+    private Node find(String prefix) {
+        Node node = root;
+        String folded = prefix.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < folded.length() && node != null; i++) {
+            node = node.children.get(folded.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Adds every set that has the given form as its subjective or objective form to a collection.
+     */
+    void collectSetsWithForm(String form, Set<PronounSet> out) {
+        Node node = find(form);
+        if (node != null && node.form != null) {
+            out.addAll(node.asSubjective);
+            out.addAll(node.asObjective);
+        }
+    }
+
+    /**
+     * Finds forms starting with a prefix, in alphabetical order. A form is suggested if it starts a set
+     * that hasn't been used yet, or if it's the objective form of a set whose subjective form was the
+     * previous segment (so "she/h" suggests "she/her").
+     *
+     * @param base     the text to prepend to each completion
+     * @param previous the segment before the one being completed, or null if there isn't one
+     * @param prefix   the partial segment being completed
+     * @param used     sets that have already been entered
+     * @param limit    the maximum number of completions to return
+     */
+    List<String> complete(String base, String previous, String prefix, Set<PronounSet> used, int limit) {
+        List<String> out = new ArrayList<>(Math.min(limit, 16));
+        Node start = find(prefix);
+        if (start == null || limit <= 0) {
+            return out;
+        }
+
+        // depth first, pushing children in reverse so they come off the stack in order
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty() && out.size() < limit) {
+            Node node = stack.pop();
+            if (node.form != null && suggests(node, previous, used)) {
+                out.add(base + node.form);
+            }
+            Iterator<Node> children = node.children.descendingMap().values().iterator();
+            while (children.hasNext()) {
+                stack.push(children.next());
+            }
+        }
+        return out;
+    }
+
+    private static boolean suggests(Node node, String previous, Set<PronounSet> used) {
+        for (PronounSet set : node.asSubjective) {
+            if (!used.contains(set)) {
+                return true;
+            }
+        }
+        if (previous != null) {
+            for (PronounSet set : node.asObjective) {
+                if (set.subjective().equalsIgnoreCase(previous)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
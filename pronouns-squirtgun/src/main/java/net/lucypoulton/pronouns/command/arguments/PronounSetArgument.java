@@ -2,21 +2,41 @@ package net.lucypoulton.pronouns.command.arguments;
 
 import com.google.common.base.Splitter;
 import net.lucypoulton.pronouns.api.PronounHandler;
-import net.lucypoulton.pronouns.api.StringUtils;
 import net.lucypoulton.pronouns.api.set.PronounSet;
+import net.lucypoulton.pronouns.config.ConfigHandler;
 import net.lucypoulton.squirtgun.command.argument.CommandArgument;
 import net.lucypoulton.squirtgun.command.context.CommandContext;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class PronounSetArgument implements CommandArgument<Set<PronounHandler.ParseResult>> {
 
     private final PronounHandler handler;
+    private final ConfigHandler config;
 
-    public PronounSetArgument(PronounHandler handler) {
+    // the trie is rebuilt whenever the handler hands out a new snapshot of its sets
+    private volatile Set<PronounSet> trieSource;
+    private volatile PronounCompletionTrie trie;
+
+    public PronounSetArgument(PronounHandler handler, ConfigHandler config) {
         this.handler = handler;
+        this.config = config;
+    }
+
+    private PronounCompletionTrie trie() {
+        Set<PronounSet> all = handler.getAllPronouns();
+        PronounCompletionTrie current = trie;
+        if (current == null || trieSource != all) {
+            synchronized (this) {
+                if (trie == null || trieSource != all) {
+                    trie = new PronounCompletionTrie(all);
+                    trieSource = all;
+                }
+                current = trie;
+            }
+        }
+        return current;
     }
 
     @Override
@@ -40,32 +60,21 @@ public class PronounSetArgument implements CommandArgument<Set<PronounHandler.Pa
 
     @Override
     public @Nullable List<String> tabComplete(Queue<String> args, CommandContext context) {
-
-        Set<PronounSet> sets = new HashSet<>();
-        
         String tail = args.remove();
         while (!args.isEmpty()) tail = args.poll();
-        
-        List<String> current = Splitter.on("/").splitToList(tail);
-
-        Set<PronounSet> all = handler.getAllPronouns();
 
-        if (current.size() <= 1) {
-            return all.stream().map(PronounSet::subjective).collect(Collectors.toUnmodifiableList());
-        }
+        List<String> current = Splitter.on("/").splitToList(tail);
+        PronounCompletionTrie trie = trie();
 
-        for (String setString : current) {
-            all.stream()
-                .filter(set -> Arrays.asList(set.asArray()).contains(setString))
-                .forEach(sets::add);
+        Set<PronounSet> used = new HashSet<>();
+        for (String setString : current.subList(0, current.size() - 1)) {
+            trie.collectSetsWithForm(setString, used);
         }
 
-        String base = String.join("/", current.subList(0, current.size() - 1)) + "/";
+        String base = current.size() <= 1 ? "" : String.join("/", current.subList(0, current.size() - 1)) + "/";
+        String previous = current.size() <= 1 ? null : current.get(current.size() - 2);
 
-        return all.stream()
-            .filter(x -> !sets.contains(x))
-            .map(x -> base + x.subjective())
-            .collect(Collectors.toUnmodifiableList());
+        return trie.complete(base, previous, current.get(current.size() - 1), used, config.getMaxTabCompletions());
     }
 
     @Override
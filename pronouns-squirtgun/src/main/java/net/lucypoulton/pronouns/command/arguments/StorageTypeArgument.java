@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.command.arguments;
+
+import net.lucypoulton.pronouns.config.ConnectionType;
+import net.lucypoulton.squirtgun.command.argument.CommandArgument;
+import net.lucypoulton.squirtgun.command.context.CommandContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+
+/**
+ * One of the storage backends, named as in the config's {@code connection} option.
+ */
+public class StorageTypeArgument implements CommandArgument<ConnectionType> {
+
+    private final String name;
+    private final String description;
+
+    public StorageTypeArgument(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    @Override
+    public @NotNull String getName() {
+        return name;
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    @Override
+    public @Nullable ConnectionType getValue(Queue<String> args, CommandContext context) {
+        String value = args.poll();
+        if (value == null) {
+            return null;
+        }
+        try {
+            return ConnectionType.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public @Nullable List<String> tabComplete(Queue<String> args, CommandContext context) {
+        String prefix = args.isEmpty() ? "" : args.poll().toLowerCase(Locale.ROOT);
+        List<String> out = new ArrayList<>();
+        for (ConnectionType type : ConnectionType.values()) {
+            String typeName = type.name().toLowerCase(Locale.ROOT);
+            if (typeName.startsWith(prefix)) {
+                out.add(typeName);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public boolean isOptional() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "<" + name + ">";
+    }
+}
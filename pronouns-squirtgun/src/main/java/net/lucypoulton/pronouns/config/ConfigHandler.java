@@ -11,8 +11,20 @@ public interface ConfigHandler extends FormatProvider {
 
     boolean filterEnabled();
 
+    int getMaxTabCompletions();
+
     SqlInfoContainer getSqlConnectionData();
 
+    /**
+     * @return how many background threads load and save pronouns
+     */
+    int getStorageThreads();
+
+    /**
+     * @return the most background loads and saves that can be waiting at once, before more are turned away
+     */
+    int getStorageQueueSize();
+
     boolean checkForUpdates();
 
     ConnectionType getConnectionType();
@@ -20,5 +20,8 @@ package net.lucypoulton.pronouns.config;
 
 public enum ConnectionType {
     MYSQL,
-    YML
+    YML,
+    LOG,
+    MAPPED,
+    H2
 }
@@ -18,13 +18,20 @@
 
 package net.lucypoulton.pronouns.config;
 
+import org.jetbrains.annotations.Nullable;
+
 public class SqlInfoContainer {
 	private final String host;
 	private final int port;
 	private final String database;
 	private final String username;
 	private final String password;
-
+	private final long flushInterval;
+	private final int flushBatchSize;
+	private final long syncInterval;
+	private final long prefetchWindow;
+	private final int prefetchBatchSize;
+	private final SqlInfoContainer readReplica;
 
 	public String getHost() {
 		return host;
@@ -46,11 +53,67 @@ public class SqlInfoContainer {
 		return password;
 	}
 
+	/**
+	 * @return how often queued writes are flushed to the database, in milliseconds
+	 */
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * @return the most players to write in one transaction
+	 */
+	public int getFlushBatchSize() {
+		return flushBatchSize;
+	}
+
+	/**
+	 * @return how often to check for changes made by other servers sharing the database, in milliseconds,
+	 * or 0 to not check
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * @return how long a joining player's lookup waits for others to join, so they can share one query,
+	 * in milliseconds
+	 */
+	public long getPrefetchWindow() {
+		return prefetchWindow;
+	}
+
+	/**
+	 * @return the most joining players to look up in one query
+	 */
+	public int getPrefetchBatchSize() {
+		return prefetchBatchSize;
+	}
+
+	/**
+	 * @return a read-only replica of the database to send reads to, or null to read from this database
+	 */
+	public @Nullable SqlInfoContainer getReadReplica() {
+		return readReplica;
+	}
+
 	public SqlInfoContainer(String host, int port, String database, String username, String password) {
+		this(host, port, database, username, password, 1000, 100, 2000, 25, 200, null);
+	}
+
+	public SqlInfoContainer(String host, int port, String database, String username, String password,
+							long flushInterval, int flushBatchSize, long syncInterval,
+							long prefetchWindow, int prefetchBatchSize, @Nullable SqlInfoContainer readReplica) {
 		this.host = host;
 		this.port = port;
 		this.database = database;
 		this.username = username;
 		this.password = password;
+		this.flushInterval = flushInterval;
+		this.flushBatchSize = flushBatchSize;
+		this.syncInterval = syncInterval;
+		this.prefetchWindow = prefetchWindow;
+		this.prefetchBatchSize = prefetchBatchSize;
+		this.readReplica = readReplica;
 	}
 }
\ No newline at end of file
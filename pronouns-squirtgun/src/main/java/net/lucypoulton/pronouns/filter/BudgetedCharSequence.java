@@ -0,0 +1,48 @@
+package net.lucypoulton.pronouns.filter;
+
+/**
+ * Wraps a string and counts how many characters a regex engine reads from it, throwing once a limit is hit.
+ * This bounds the time a backtracking pattern can spend on a single input.
+ */
+final class BudgetedCharSequence implements CharSequence {
+
+    private final String value;
+    private final int[] remaining;
+    private final int offset;
+    private final int length;
+
+    BudgetedCharSequence(String value, int budget) {
+        this(value, new int[]{budget}, 0, value.length());
+    }
+
+    private BudgetedCharSequence(String value, int[] remaining, int offset, int length) {
+        this.value = value;
+        this.remaining = remaining;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (--remaining[0] < 0) {
+            throw new StepBudgetExceededException();
+        }
+        return value.charAt(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        // shares the budget with its parent
+        return new BudgetedCharSequence(value, remaining, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return value.substring(offset, offset + length);
+    }
+}
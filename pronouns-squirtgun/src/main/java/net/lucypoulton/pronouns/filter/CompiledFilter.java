@@ -0,0 +1,101 @@
+package net.lucypoulton.pronouns.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The pronoun filter, compiled so that an input is checked against every pattern in one pass.
+ * Plain words are matched with a single automaton, and the remaining patterns are merged into one
+ * alternation. Instances are immutable, so a reload can safely swap in a new one.
+ */
+public final class CompiledFilter {
+
+    /**
+     * The maximum number of characters the regex engine may read for one input before giving up.
+     * Inputs that hit this are treated as filtered.
+     */
+    static final int STEP_BUDGET = 100_000;
+
+    private static final Pattern REGEX_META = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+    // backreferences are numbered, so patterns using them can't be merged with others
+    private static final Pattern BACKREFERENCE = Pattern.compile("\\\\(\\d|k<)");
+
+    public static final CompiledFilter EMPTY = new CompiledFilter(null, List.of(), null);
+
+    private final LiteralMatcher literals;
+    private final List<Pattern> patterns;
+    private final Logger logger;
+
+    private CompiledFilter(LiteralMatcher literals, List<Pattern> patterns, Logger logger) {
+        this.literals = literals;
+        this.patterns = patterns;
+        this.logger = logger;
+    }
+
+    /**
+     * Compiles a list of filter patterns. Invalid patterns are logged and skipped.
+     */
+    public static CompiledFilter compile(List<String> sources, Logger logger) {
+        List<String> words = new ArrayList<>();
+        List<String> mergeable = new ArrayList<>();
+        List<Pattern> standalone = new ArrayList<>();
+
+        for (String source : sources) {
+            try {
+                Pattern.compile(source);
+            } catch (PatternSyntaxException e) {
+                logger.warning("Filter pattern '" + source + "' is invalid, ignoring - " + e.getDescription());
+                continue;
+            }
+            if (!REGEX_META.matcher(source).find()) {
+                words.add(source);
+            } else if (BACKREFERENCE.matcher(source).find()) {
+                standalone.add(Pattern.compile(source));
+            } else {
+                mergeable.add(source);
+            }
+        }
+
+        List<Pattern> patterns = new ArrayList<>();
+        if (!mergeable.isEmpty()) {
+            try {
+                patterns.add(Pattern.compile("(?:" + String.join(")|(?:", mergeable) + ")"));
+            } catch (PatternSyntaxException e) {
+                // patterns that are fine alone can clash once merged, such as two using the same group name
+                for (String source : mergeable) {
+                    patterns.add(Pattern.compile(source));
+                }
+            }
+        }
+        patterns.addAll(standalone);
+
+        return new CompiledFilter(words.isEmpty() ? null : new LiteralMatcher(words), List.copyOf(patterns), logger);
+    }
+
+    /**
+     * Checks whether an input is blocked by the filter.
+     */
+    public boolean matches(String input) {
+        if (literals != null && literals.matches(input)) {
+            return true;
+        }
+        if (patterns.isEmpty()) {
+            return false;
+        }
+        CharSequence budgeted = new BudgetedCharSequence(input, STEP_BUDGET);
+        try {
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(budgeted).find()) {
+                    return true;
+                }
+            }
+        } catch (StepBudgetExceededException e) {
+            logger.warning("Filter gave up checking '" + input + "' - a pattern is taking too long. Treating it as filtered.");
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+package net.lucypoulton.pronouns.filter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * An Aho-Corasick automaton that checks whether a string contains any of a group of literal words
+ * in a single pass, regardless of how many words there are.
+ */
+final class LiteralMatcher {
+
+    private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+    private final int[] failure;
+    private final boolean[] terminal;
+
+    LiteralMatcher(Collection<String> words) {
+        transitions.add(new HashMap<>());
+        List<Boolean> terminalList = new ArrayList<>();
+        terminalList.add(false);
+
+        for (String word : words) {
+            int state = 0;
+            for (int i = 0; i < word.length(); i++) {
+                Integer next = transitions.get(state).get(word.charAt(i));
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(new HashMap<>());
+                    terminalList.add(false);
+                    transitions.get(state).put(word.charAt(i), next);
+                }
+                state = next;
+            }
+            terminalList.set(state, true);
+        }
+
+        failure = new int[transitions.size()];
+        terminal = new boolean[transitions.size()];
+        for (int i = 0; i < terminal.length; i++) {
+            terminal[i] = terminalList.get(i);
+        }
+
+        // breadth first, so every state's failure link is resolved before its children
+        Queue<Integer> queue = new ArrayDeque<>(transitions.get(0).values());
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            for (Map.Entry<Character, Integer> entry : transitions.get(state).entrySet()) {
+                int child = entry.getValue();
+                int fallback = failure[state];
+                while (fallback != 0 && !transitions.get(fallback).containsKey(entry.getKey())) {
+                    fallback = failure[fallback];
+                }
+                Integer target = transitions.get(fallback).get(entry.getKey());
+                failure[child] = target != null && target != child ? target : 0;
+                terminal[child] |= terminal[failure[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    boolean matches(CharSequence input) {
+        if (terminal[0]) {
+            return true;
+        }
+        int state = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            while (state != 0 && !transitions.get(state).containsKey(c)) {
+                state = failure[state];
+            }
+            state = transitions.get(state).getOrDefault(c, 0);
+            if (terminal[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
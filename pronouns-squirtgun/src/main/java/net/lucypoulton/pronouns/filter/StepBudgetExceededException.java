@@ -0,0 +1,12 @@
+package net.lucypoulton.pronouns.filter;
+
+/**
+ * Thrown when a filter pattern reads more characters than it is allowed to for one input.
+ */
+class StepBudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    StepBudgetExceededException() {
+        super(null, null, false, false);
+    }
+}
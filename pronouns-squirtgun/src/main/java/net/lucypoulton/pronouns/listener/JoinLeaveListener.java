@@ -1,14 +1,12 @@
 package net.lucypoulton.pronouns.listener;
 
 import net.lucypoulton.pronouns.ProNouns;
-import net.lucypoulton.pronouns.config.ConnectionType;
 import net.lucypoulton.pronouns.storage.MysqlFileStorage;
-import net.lucypoulton.squirtgun.platform.Platform;
+import net.lucypoulton.pronouns.storage.ProxyStorage;
 import net.lucypoulton.squirtgun.platform.event.EventHandler;
 import net.lucypoulton.squirtgun.platform.event.EventListener;
 import net.lucypoulton.squirtgun.platform.event.player.PlayerJoinEvent;
 import net.lucypoulton.squirtgun.platform.event.player.PlayerLeaveEvent;
-import net.lucypoulton.squirtgun.platform.scheduler.Task;
 
 import java.util.List;
 
@@ -21,21 +19,17 @@ public class JoinLeaveListener implements EventListener {
     }
 
     private void onJoin(PlayerJoinEvent event) {
-        if (plugin.getConfigHandler().getConnectionType() == ConnectionType.MYSQL) {
-            Task.builder()
-                .async()
-                .action((Platform ignored) -> {
-                    MysqlFileStorage storage = (MysqlFileStorage) plugin.getPlatform().getStorage();
-                    storage.getPronouns(event.player().getUuid(), false);
-                })
-                .build().execute(plugin.getPlatform());
+        if (plugin.getPlatform().getStorage() instanceof MysqlFileStorage) {
+            ((MysqlFileStorage) plugin.getPlatform().getStorage()).prefetch(event.player().getUuid());
         }
     }
 
     private void onLeave(PlayerLeaveEvent event) {
-        if (plugin.getConfigHandler().getConnectionType() == ConnectionType.MYSQL) {
+        if (plugin.getPlatform().getStorage() instanceof MysqlFileStorage) {
             MysqlFileStorage storage = (MysqlFileStorage) plugin.getPlatform().getStorage();
             storage.onPlayerDisconnect(event.player().getUuid());
+        } else if (plugin.getPlatform().getStorage() instanceof ProxyStorage) {
+            ((ProxyStorage) plugin.getPlatform().getStorage()).onPlayerDisconnect(event.player().getUuid());
         }
     }
 
@@ -8,18 +8,23 @@ import java.util.Set;
 
 public class BuiltinPronounProvider implements PronounProvider {
 
-    private final PronounSet baseSet = PronounSet.parse("they/them/they're/their/theirs/themself");
-    private final Set<PronounSet> sets = Set.of(
-        baseSet,
+    private static final PronounSet BASE_SET = PronounSet.parse("they/them/they're/their/theirs/themself");
+
+    /**
+     * The sets every server knows about, whatever its config. These never change between releases,
+     * so they are safe to refer to by a short key in shared storage.
+     */
+    public static final Set<PronounSet> SETS = Set.of(
+        BASE_SET,
         PronounSet.parse("he/him/he's/his/his/himself"),
         PronounSet.parse("she/her/she's/her/hers/herself"),
-        new SpecialPronounSet(baseSet, "Any", "Any"),
-        new SpecialPronounSet(baseSet, "Ask", "Ask"),
-        new SpecialPronounSet(baseSet, "Unset", "Unset")
+        new SpecialPronounSet(BASE_SET, "Any", "Any"),
+        new SpecialPronounSet(BASE_SET, "Ask", "Ask"),
+        new SpecialPronounSet(BASE_SET, "Unset", "Unset")
     );
 
     @Override
     public Set<PronounSet> get() {
-        return sets;
+        return SETS;
     }
 }
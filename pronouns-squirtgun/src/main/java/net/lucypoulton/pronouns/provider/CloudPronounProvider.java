@@ -46,7 +46,7 @@ public class CloudPronounProvider implements PronounProvider {
     private final HttpClient client = HttpClient.newHttpClient();
     private final ProNouns plugin;
     private final Path dataFilePath;
-    private DatabaseFile dataFileContent;
+    private volatile DatabaseFile dataFileContent;
 
     public CloudPronounProvider(ProNouns plugin) {
         this.plugin = plugin;
@@ -69,6 +69,10 @@ public class CloudPronounProvider implements PronounProvider {
         if (dataFileContent == null) {
             dataFileContent = new DatabaseFile("Internal error loading file", new Date(), Set.of());
         }
+
+        if (plugin.getPronounHandler() != null) {
+            plugin.getPronounHandler().refreshProviders();
+        }
     }
 
     /**
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Saves a file in the background a short while after it is changed, so that many changes close together
+ * only cause one save. Files are written to a temporary file which then replaces the real one,
+ * so a crash mid-save can't leave a half-written file behind.
+ */
+public final class DebouncedFileWriter {
+
+    private final Path file;
+    private final Path tempFile;
+    private final Supplier<String> serialiser;
+    private final long delayMillis;
+    private final Logger logger;
+
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param serialiser  produces the file's content. This is called on the writer thread, so it must be
+     *                    safe to call alongside whatever is changing the content
+     * @param delayMillis how long to wait after a change before saving
+     */
+    public DebouncedFileWriter(Path file, Supplier<String> serialiser, long delayMillis, Logger logger) {
+        this.file = file;
+        this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.serialiser = serialiser;
+        this.delayMillis = delayMillis;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ProNouns file writer - " + file.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Marks the content as changed, scheduling a save if one isn't already scheduled.
+     */
+    public void markDirty() {
+        if (dirty.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        try {
+            executor.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down - close() saves anything outstanding
+        }
+    }
+
+    /**
+     * Saves now if there are unsaved changes.
+     *
+     * @return false if saving failed
+     */
+    public synchronized boolean flush() {
+        // cleared before serialising, so a change made while saving schedules another save
+        if (!dirty.getAndSet(false)) {
+            return true;
+        }
+        try {
+            Files.write(tempFile, serialiser.get().getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.severe("Failed to save " + file.getFileName() + ", will retry - " + e);
+            if (dirty.compareAndSet(false, true)) {
+                schedule();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stops the background thread and saves anything outstanding. Called when the plugin is disabled.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!flush()) {
+            logger.severe("Failed to save " + file.getFileName() + " before shutting down - recent changes have been lost.");
+        }
+    }
+}
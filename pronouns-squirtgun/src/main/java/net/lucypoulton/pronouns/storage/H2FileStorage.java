@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import net.lucypoulton.pronouns.ProNouns;
+
+/**
+ * Stores pronouns in an embedded H2 database in the plugin's data folder, for servers without MySQL.
+ * This uses the same tables, caching and batched writes as {@link MysqlFileStorage}.
+ */
+public class H2FileStorage extends MysqlFileStorage {
+    public H2FileStorage(ProNouns plugin) throws MysqlConnectionException {
+        super(plugin, SqlDialect.H2);
+    }
+}
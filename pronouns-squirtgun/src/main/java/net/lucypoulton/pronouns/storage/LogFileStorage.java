@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
+import com.google.common.io.CountingInputStream;
+import net.lucypoulton.pronouns.ProNouns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Stores pronouns as an append-only log of set and clear records, so each change is one small write
+ * to the end of the file. The log is replayed into memory on startup, and rewritten in the background
+ * with only the latest record for each player once most of it is out of date.
+ */
+public class LogFileStorage implements Storage {
+
+    private static final int MAGIC = 0x504e4c47; // "PNLG"
+    private static final int FORMAT_VERSION = 1;
+    private static final byte RECORD_SET = 'S';
+    private static final byte RECORD_CLEAR = 'C';
+
+    // compaction only happens once the log has at least this many records, and more than half of them are stale
+    private static final long MIN_RECORDS_FOR_COMPACTION = 1024;
+    // how long to wait after a failed compaction before trying again
+    private static final long COMPACTION_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Path file;
+    private final Path tempFile;
+    private final Logger logger;
+    private final Map<UUID, List<String>> players = new ConcurrentHashMap<>();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ProNouns log compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // guards everything below, and changes to players
+    private final Object lock = new Object();
+    private DataOutputStream out;
+    private FileChannel channel;
+    private long records;
+    // records appended while a compaction is running, to be copied onto the end of the compacted log
+    private List<byte[]> compactionBacklog;
+    private long compactionRetryAt;
+    private boolean closed;
+
+    public LogFileStorage(ProNouns plugin) throws IOException {
+        this.file = plugin.getPlatform().getConfigPath(plugin).resolve("datastore.log");
+        this.tempFile = file.resolveSibling("datastore.log.tmp");
+        this.logger = plugin.getPlatform().getLogger();
+
+        Files.createDirectories(file.getParent());
+        if (Files.exists(file)) {
+            replay();
+        } else {
+            try (DataOutputStream header = new DataOutputStream(Files.newOutputStream(file))) {
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+            }
+        }
+        openForAppend();
+        logger.info("Loaded " + players.size() + " players from datastore.log.");
+        maybeCompact();
+    }
+
+    private void replay() throws IOException {
+        long validLength;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+             DataInputStream in = new DataInputStream(counter)) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("datastore.log is not a ProNouns log, or was written by a newer version");
+            }
+            validLength = counter.getCount();
+            try {
+                while (true) {
+                    int type = in.read();
+                    if (type == -1) {
+                        break;
+                    }
+                    if (type != RECORD_SET && type != RECORD_CLEAR) {
+                        byte[] rest = in.readAllBytes();
+                        if (recordsFollow(rest)) {
+                            throw new IOException("datastore.log is corrupt - unknown record type " + type + " at byte " + validLength);
+                        }
+                        // nothing readable after it, so this is a partly written tail rather than damage to the log
+                        logger.warning("datastore.log ends with " + (rest.length + 1) + " unreadable bytes, which have been discarded.");
+                        break;
+                    }
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    if (type == RECORD_SET) {
+                        int count = in.readUnsignedShort();
+                        List<String> sets = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            sets.add(in.readUTF());
+                        }
+                        players.put(uuid, List.copyOf(sets));
+                    } else {
+                        players.remove(uuid);
+                    }
+                    records++;
+                    validLength = counter.getCount();
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // the server stopped part way through writing the last record
+                logger.warning("datastore.log ends with an incomplete record, which has been discarded.");
+            }
+        }
+        try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (truncate.size() > validLength) {
+                truncate.truncate(validLength);
+            }
+        }
+    }
+
+    /**
+     * Checks whether any complete record can be read from somewhere in the given bytes, through to the
+     * end of the file or to a record that was only partly written.
+     */
+    private static boolean recordsFollow(byte[] bytes) {
+        for (int offset = 0; offset < bytes.length; offset++) {
+            if (bytes[offset] == RECORD_SET || bytes[offset] == RECORD_CLEAR) {
+                if (readsToEnd(new DataInputStream(new ByteArrayInputStream(bytes, offset, bytes.length - offset)))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean readsToEnd(DataInputStream in) {
+        boolean complete = false;
+        try {
+            int type;
+            while ((type = in.read()) != -1) {
+                if (type != RECORD_SET && type != RECORD_CLEAR) {
+                    return false;
+                }
+                in.readLong();
+                in.readLong();
+                if (type == RECORD_SET) {
+                    int count = in.readUnsignedShort();
+                    for (int i = 0; i < count; i++) {
+                        in.readUTF();
+                    }
+                }
+                complete = true;
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // a partly written record at the end doesn't undo the ones before it
+        } catch (IOException e) {
+            return false;
+        }
+        return complete;
+    }
+
+    private void openForAppend() throws IOException {
+        FileOutputStream stream = new FileOutputStream(file.toFile(), true);
+        channel = stream.getChannel();
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+    }
+
+    private static byte[] encode(UUID uuid, List<String> sets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        writeRecord(record, uuid, sets);
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream record, UUID uuid, List<String> sets) throws IOException {
+        record.writeByte(sets.isEmpty() ? RECORD_CLEAR : RECORD_SET);
+        record.writeLong(uuid.getMostSignificantBits());
+        record.writeLong(uuid.getLeastSignificantBits());
+        if (!sets.isEmpty()) {
+            record.writeShort(sets.size());
+            for (String set : sets) {
+                record.writeUTF(set);
+            }
+        }
+    }
+
+    private void write(UUID uuid, List<String> sets) {
+        synchronized (lock) {
+            try {
+                byte[] record = encode(uuid, sets);
+                out.write(record);
+                out.flush();
+                records++;
+                if (compactionBacklog != null) {
+                    compactionBacklog.add(record);
+                }
+            } catch (IOException e) {
+                logger.severe("Failed to write to datastore.log - " + e);
+            }
+            if (sets.isEmpty()) {
+                players.remove(uuid);
+            } else {
+                players.put(uuid, sets);
+            }
+        }
+        maybeCompact();
+    }
+
+    private void maybeCompact() {
+        synchronized (lock) {
+            if (closed || compactionBacklog != null || records < MIN_RECORDS_FOR_COMPACTION || records <= players.size() * 2L) {
+                return;
+            }
+            if (System.currentTimeMillis() < compactionRetryAt) {
+                return;
+            }
+            // claims the compaction, so only one is queued at a time
+            compactionBacklog = new ArrayList<>();
+        }
+        compactor.execute(this::compact);
+    }
+
+    private void compact() {
+        Map<UUID, List<String>> snapshot;
+        synchronized (lock) {
+            snapshot = new HashMap<>(players);
+            // anything written from now on is also copied to the end of the compacted log
+            compactionBacklog = new ArrayList<>();
+        }
+
+        try {
+            try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                compacted.writeInt(MAGIC);
+                compacted.writeInt(FORMAT_VERSION);
+                for (Map.Entry<UUID, List<String>> entry : snapshot.entrySet()) {
+                    writeRecord(compacted, entry.getKey(), entry.getValue());
+                }
+            }
+
+            synchronized (lock) {
+                try (OutputStream tail = Files.newOutputStream(tempFile, StandardOpenOption.APPEND);
+                     FileChannel sync = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                    for (byte[] record : compactionBacklog) {
+                        tail.write(record);
+                    }
+                    tail.flush();
+                    sync.force(true);
+                }
+                out.close();
+                try {
+                    Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                openForAppend();
+                records = snapshot.size() + compactionBacklog.size();
+                compactionBacklog = null;
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to compact datastore.log, will try again in "
+                + TimeUnit.MILLISECONDS.toMinutes(COMPACTION_RETRY_MILLIS) + " minutes - " + e);
+            synchronized (lock) {
+                compactionBacklog = null;
+                compactionRetryAt = System.currentTimeMillis() + COMPACTION_RETRY_MILLIS;
+                try {
+                    Files.deleteIfExists(tempFile);
+                    if (!channel.isOpen()) {
+                        openForAppend();
+                    }
+                } catch (IOException reopen) {
+                    logger.severe("Failed to reopen datastore.log, changes will not be saved - " + reopen);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getPronouns(UUID uuid) {
+        return new LinkedHashSet<>(players.getOrDefault(uuid, List.of()));
+    }
+
+    @Override
+    public void setPronouns(UUID uuid, Set<String> sets) {
+        write(uuid, List.copyOf(sets));
+    }
+
+    @Override
+    public void clearPronouns(UUID uuid) {
+        if (players.containsKey(uuid)) {
+            write(uuid, List.of());
+        }
+    }
+
+    @Override
+    public SetMultimap<UUID, String> getAllPronouns() {
+        SetMultimap<UUID, String> out = MultimapBuilder.hashKeys().linkedHashSetValues().build();
+        forEachPronouns(out::putAll);
+        return out;
+    }
+
+    @Override
+    public boolean forEachPronouns(BiConsumer<UUID, List<String>> consumer) {
+        players.forEach(consumer);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            // stops writes racing with shutdown from queueing a compaction
+            closed = true;
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            try {
+                out.flush();
+                channel.force(true);
+                out.close();
+            } catch (IOException e) {
+                logger.severe("Failed to close datastore.log - " + e);
+            }
+        }
+    }
+}
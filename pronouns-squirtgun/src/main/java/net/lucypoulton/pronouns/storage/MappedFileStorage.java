@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
+import com.google.common.io.CountingInputStream;
+import net.lucypoulton.pronouns.ProNouns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Stores pronouns in an open-addressing hash table inside a memory-mapped file, for servers with
+ * too many players to comfortably keep in memory. Each player is a fixed-size slot holding their UUID
+ * and the ids of up to {@value #MAX_SETS} sets. The sets themselves are kept once each in a dictionary file.
+ * <p>
+ * Changes are appended to a journal before the table is touched, and the journal is replayed on startup,
+ * so a crash part way through updating a slot can't corrupt it. The table is rebuilt into a new file
+ * twice the size once it is {@value #MAX_LOAD_PERCENT}% full.
+ */
+public class MappedFileStorage implements Storage {
+
+    /**
+     * The most sets that can be stored for one player. Any more are dropped, with a warning.
+     */
+    public static final int MAX_SETS = 8;
+
+    private static final int MAGIC = 0x504e4d46; // "PNMF"
+    private static final int FORMAT_VERSION = 1;
+    // magic, format version, capacity, player count
+    private static final int HEADER_SIZE = 16;
+    // uuid, then the state (0 if the slot is empty, otherwise 1 + the number of sets), then the set ids
+    private static final int SLOT_SIZE = 16 + 4 + 4 * MAX_SETS;
+    private static final int STATE_OFFSET = 16;
+    private static final int IDS_OFFSET = 20;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    // the largest table that still fits in one mapping
+    private static final int MAX_CAPACITY = 1 << 25;
+    private static final int MAX_LOAD_PERCENT = 70;
+    private static final long JOURNAL_CHECKPOINT_BYTES = 1 << 20;
+
+    private final Path directory;
+    private final Path journalFile;
+    private final Path dictionaryFile;
+    private final Logger logger;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // everything below is guarded by lock
+    private Path indexFile;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> dictionaryIds = new HashMap<>();
+    private FileOutputStream dictionaryFileOut;
+    private DataOutputStream dictionaryOut;
+    // whether sets have been added to the dictionary since it was last forced to disk
+    private boolean dictionaryChanged;
+    private FileChannel journal;
+
+    public MappedFileStorage(ProNouns plugin) throws IOException {
+        this.directory = plugin.getPlatform().getConfigPath(plugin);
+        this.journalFile = directory.resolve("datastore.journal");
+        this.dictionaryFile = directory.resolve("datastore.dict");
+        this.logger = plugin.getPlatform().getLogger();
+
+        Files.createDirectories(directory);
+        loadDictionary();
+        openIndex();
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replayJournal();
+        logger.info("Opened " + indexFile.getFileName() + " with " + count + " players.");
+    }
+
+    // --- startup ---
+
+    private void loadDictionary() throws IOException {
+        long validLength = 0;
+        if (Files.exists(dictionaryFile)) {
+            try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(dictionaryFile)));
+                 DataInputStream in = new DataInputStream(counter)) {
+                while (true) {
+                    String set = in.readUTF();
+                    dictionaryIds.put(set, dictionary.size());
+                    dictionary.add(set);
+                    validLength = counter.getCount();
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // end of file, or a set that was only partly written
+            }
+            try (FileChannel truncate = FileChannel.open(dictionaryFile, StandardOpenOption.WRITE)) {
+                if (truncate.size() > validLength) {
+                    truncate.truncate(validLength);
+                }
+            }
+        }
+        dictionaryFileOut = new FileOutputStream(dictionaryFile.toFile(), true);
+        dictionaryOut = new DataOutputStream(new BufferedOutputStream(dictionaryFileOut));
+    }
+
+    private static Path indexPath(Path directory, int capacity) {
+        return directory.resolve("datastore-" + capacity + ".idx");
+    }
+
+    /**
+     * Opens the largest complete index file, deleting any others - these are either older than it,
+     * or were left behind by a resize that didn't finish.
+     */
+    private void openIndex() throws IOException {
+        List<Path> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "datastore-*.idx")) {
+            files.forEach(candidates::add);
+        }
+
+        Path best = null;
+        int bestCapacity = 0;
+        for (Path candidate : candidates) {
+            int candidateCapacity = readCompleteCapacity(candidate);
+            if (candidateCapacity > bestCapacity) {
+                best = candidate;
+                bestCapacity = candidateCapacity;
+            }
+        }
+        for (Path candidate : candidates) {
+            if (!candidate.equals(best)) {
+                Files.deleteIfExists(candidate);
+            }
+        }
+
+        if (best == null) {
+            createIndex(INITIAL_CAPACITY);
+            markComplete();
+            return;
+        }
+        indexFile = best;
+        indexChannel = FileChannel.open(best, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) bestCapacity * SLOT_SIZE);
+        capacity = bestCapacity;
+        // the count in the header isn't journalled along with the slots, so can be wrong after a crash
+        count = countPlayers();
+        index.putInt(12, count);
+    }
+
+    private int countPlayers() {
+        int players = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (index.getInt(offset(slot) + STATE_OFFSET) != 0) {
+                players++;
+            }
+        }
+        return players;
+    }
+
+    /**
+     * @return the capacity of an index file, or 0 if it isn't a complete index
+     */
+    private static int readCompleteCapacity(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) < HEADER_SIZE) {
+                return 0;
+            }
+            int capacity = header.getInt(8);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION || capacity <= 0
+                || channel.size() < HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                return 0;
+            }
+            return capacity;
+        }
+    }
+
+    private void createIndex(int newCapacity) throws IOException {
+        Path file = indexPath(directory, newCapacity);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(8, newCapacity);
+        buffer.putInt(12, 0);
+
+        indexFile = file;
+        indexChannel = channel;
+        index = buffer;
+        capacity = newCapacity;
+        count = 0;
+    }
+
+    /**
+     * Writes the index to disk, then marks it as complete. The mark is written last, so that a file
+     * is only ever used once everything else in it is.
+     */
+    private void markComplete() {
+        index.force();
+        index.putInt(0, MAGIC);
+        index.force();
+    }
+
+    private void replayJournal() throws IOException {
+        // read in full first, as applying changes can resize the table
+        ByteBuffer contents = ByteBuffer.allocate((int) journal.size());
+        while (contents.hasRemaining() && journal.read(contents, contents.position()) > 0) {
+            // keep reading
+        }
+        contents.flip();
+
+        int replayed = 0;
+        while (contents.remaining() >= 20) {
+            long msb = contents.getLong();
+            long lsb = contents.getLong();
+            int sets = contents.getInt();
+            if (sets < 0 || sets > MAX_SETS || contents.remaining() < 4 * sets) {
+                // the last change was only partly written
+                break;
+            }
+            int[] ids = new int[sets];
+            for (int i = 0; i < sets; i++) {
+                ids[i] = contents.getInt();
+            }
+            if (validIds(ids)) {
+                apply(new UUID(msb, lsb), ids);
+                replayed++;
+            }
+        }
+        if (replayed > 0) {
+            logger.info("Recovered " + replayed + " changes from datastore.journal.");
+        }
+        checkpoint();
+    }
+
+    private boolean validIds(int[] ids) {
+        for (int id : ids) {
+            if (id < 0 || id >= dictionary.size()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // --- the table ---
+
+    private static int hash(UUID uuid) {
+        long h = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * @return the slot holding a player, or the empty slot they would go in, or -1 if they aren't in the table
+     * and it has no empty slots
+     */
+    private static int find(MappedByteBuffer table, int capacity, long msb, long lsb, int hash) {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int offset = offset(slot);
+            if (table.getInt(offset + STATE_OFFSET) == 0
+                || (table.getLong(offset) == msb && table.getLong(offset + 8) == lsb)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int find(UUID uuid) {
+        return find(index, capacity, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), hash(uuid));
+    }
+
+    private void apply(UUID uuid, int[] ids) throws IOException {
+        int slot = find(uuid);
+        boolean empty = slot < 0 || index.getInt(offset(slot) + STATE_OFFSET) == 0;
+        if (empty) {
+            if (ids.length == 0) {
+                // clearing a player who was never stored
+                return;
+            }
+            if (slot < 0 || (count + 1) * 100L > (long) capacity * MAX_LOAD_PERCENT) {
+                if (capacity >= MAX_CAPACITY) {
+                    throw new IOException("pronoun storage is full");
+                }
+                resize();
+                slot = find(uuid);
+            }
+        }
+        int offset = offset(slot);
+
+        for (int i = 0; i < ids.length; i++) {
+            index.putInt(offset + IDS_OFFSET + i * 4, ids[i]);
+        }
+        if (empty) {
+            index.putLong(offset, uuid.getMostSignificantBits());
+            index.putLong(offset + 8, uuid.getLeastSignificantBits());
+        }
+        index.putInt(offset + STATE_OFFSET, ids.length + 1);
+        if (empty) {
+            count++;
+            index.putInt(12, count);
+        }
+    }
+
+    /**
+     * Copies every player into a new table twice the size. The old file is only removed once the new one
+     * is complete, so a crash during a resize just leaves the old table in use. The journal is kept,
+     * as replaying it onto either table gives the same result.
+     */
+    private void resize() throws IOException {
+        MappedByteBuffer oldIndex = index;
+        FileChannel oldChannel = indexChannel;
+        Path oldFile = indexFile;
+        int oldCapacity = capacity;
+        int oldCount = count;
+
+        createIndex(oldCapacity * 2);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int from = offset(slot);
+            if (oldIndex.getInt(from + STATE_OFFSET) == 0) {
+                continue;
+            }
+            long msb = oldIndex.getLong(from);
+            long lsb = oldIndex.getLong(from + 8);
+            int to = offset(find(index, capacity, msb, lsb, hash(new UUID(msb, lsb))));
+            for (int i = 0; i < SLOT_SIZE; i++) {
+                index.put(to + i, oldIndex.get(from + i));
+            }
+        }
+        count = oldCount;
+        index.putInt(12, count);
+        markComplete();
+
+        oldChannel.close();
+        try {
+            Files.deleteIfExists(oldFile);
+        } catch (IOException e) {
+            // some systems won't delete a file that's still mapped - it'll be removed on next startup
+        }
+        logger.info("Resized pronoun storage to " + capacity + " slots.");
+    }
+
+    /**
+     * Writes the table to disk and empties the journal.
+     */
+    private void checkpoint() throws IOException {
+        index.force();
+        journal.truncate(0);
+        journal.force(true);
+    }
+
+    private int idFor(String set) throws IOException {
+        Integer id = dictionaryIds.get(set);
+        if (id != null) {
+            return id;
+        }
+        dictionaryOut.writeUTF(set);
+        dictionaryOut.flush();
+        id = dictionary.size();
+        dictionary.add(set);
+        dictionaryIds.put(set, id);
+        dictionaryChanged = true;
+        return id;
+    }
+
+    private void write(UUID uuid, Set<String> sets) {
+        lock.writeLock().lock();
+        try {
+            int[] ids = new int[Math.min(sets.size(), MAX_SETS)];
+            List<String> dropped = new ArrayList<>();
+            int i = 0;
+            for (String set : sets) {
+                if (i == ids.length) {
+                    dropped.add(set);
+                } else {
+                    ids[i++] = idFor(set);
+                }
+            }
+            if (!dropped.isEmpty()) {
+                logger.warning("Can only store " + MAX_SETS + " pronoun sets per player, so not storing "
+                    + String.join(", ", dropped) + " for " + uuid);
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(20 + 4 * ids.length);
+            record.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).putInt(ids.length);
+            for (int id : ids) {
+                record.putInt(id);
+            }
+            record.flip();
+            journal.write(record, journal.size());
+
+            // the mapped table can reach the disk at any time once it's changed, so the change has to be
+            // in the journal first - along with any new sets it refers to - to be able to repair it after a crash
+            if (dictionaryChanged) {
+                dictionaryFileOut.getChannel().force(false);
+                dictionaryChanged = false;
+            }
+            journal.force(false);
+
+            apply(uuid, ids);
+            if (journal.size() > JOURNAL_CHECKPOINT_BYTES) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to write pronouns to " + indexFile.getFileName() + " - " + e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<String> read(int offset) {
+        int sets = index.getInt(offset + STATE_OFFSET) - 1;
+        List<String> out = new ArrayList<>(Math.max(sets, 0));
+        for (int i = 0; i < sets; i++) {
+            out.add(dictionary.get(index.getInt(offset + IDS_OFFSET + i * 4)));
+        }
+        return out;
+    }
+
+    // --- Storage ---
+
+    @Override
+    public Set<String> getPronouns(UUID uuid) {
+        lock.readLock().lock();
+        try {
+            int slot = find(uuid);
+            return slot < 0 ? new LinkedHashSet<>() : new LinkedHashSet<>(read(offset(slot)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setPronouns(UUID uuid, Set<String> sets) {
+        write(uuid, sets);
+    }
+
+    @Override
+    public void clearPronouns(UUID uuid) {
+        write(uuid, Set.of());
+    }
+
+    @Override
+    public SetMultimap<UUID, String> getAllPronouns() {
+        SetMultimap<UUID, String> out = MultimapBuilder.hashKeys().linkedHashSetValues().build();
+        forEachPronouns(out::putAll);
+        return out;
+    }
+
+    /**
+     * {@inheritDoc} Changes wait until this has finished.
+     */
+    @Override
+    public boolean forEachPronouns(BiConsumer<UUID, List<String>> consumer) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                int offset = offset(slot);
+                if (index.getInt(offset + STATE_OFFSET) > 1) {
+                    consumer.accept(new UUID(index.getLong(offset), index.getLong(offset + 8)), read(offset));
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether no players have ever been stored
+     */
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return count == 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies every player from another storage into this one, such as when switching to this storage
+     * from datastore.yml or MySQL.
+     *
+     * @return the number of players copied
+     */
+    public int importFrom(Storage source) {
+        int[] imported = {0};
+        int[] truncated = {0};
+        source.forEachPronouns((uuid, sets) -> {
+            Set<String> unique = new LinkedHashSet<>(sets);
+            if (unique.size() > MAX_SETS) {
+                truncated[0]++;
+            }
+            write(uuid, unique);
+            imported[0]++;
+        });
+        if (truncated[0] > 0) {
+            logger.warning(truncated[0] + " imported players had more than " + MAX_SETS + " pronoun sets, only their first "
+                + MAX_SETS + " were kept.");
+        }
+        return imported[0];
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            checkpoint();
+            dictionaryOut.close();
+            journal.close();
+            indexChannel.close();
+        } catch (IOException e) {
+            logger.severe("Failed to close " + indexFile.getFileName() + " - " + e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -18,70 +18,407 @@
 
 package net.lucypoulton.pronouns.storage;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.SetMultimap;
 import com.zaxxer.hikari.HikariDataSource;
 import net.lucypoulton.pronouns.ProNouns;
 import net.lucypoulton.pronouns.config.SqlInfoContainer;
-import net.lucypoulton.squirtgun.platform.Platform;
-import net.lucypoulton.squirtgun.platform.scheduler.Task;
-import net.lucypoulton.squirtgun.util.UuidUtils;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
 
+/**
+ * Stores pronouns in a SQL database. Players are cached in memory, and changes are queued and written
+ * in batches on a background thread.
+ */
 public class MysqlFileStorage implements Storage {
 
+    // the most players to look up in one IN (...) query
+    private static final int BULK_CHUNK_SIZE = 500;
+    // while the database is unreachable, the wait between write attempts doubles up to this
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // how long this server's own writes are kept in memory, as the read replica may not have them yet
+    private static final long REPLICA_LAG_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // after a read from the replica fails, reads go to the main database for this long
+    private static final long REPLICA_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
     private final HikariDataSource ds = new HikariDataSource();
-    private final ProNouns plugin;
-    private final Multimap<UUID, String> cache = ArrayListMultimap.create();
+    private final Logger logger;
+    private final SqlDialect dialect;
+    private final boolean shared;
+    private final PlayerCache cache = new PlayerCache();
+
+    // null unless reads are sent to a read replica
+    private final @Nullable HikariDataSource replica;
+    private volatile long replicaRetryAt;
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder replicaFailovers = new LongAdder();
+    // this server's writes, which the replica might not have yet - only filled when there is a replica
+    private final Cache<UUID, Set<String>> recentWrites = CacheBuilder.newBuilder()
+        .expireAfterWrite(REPLICA_LAG_MILLIS, TimeUnit.MILLISECONDS).build();
+    // players changed by any server, by the id of their newest change log row - they are read from the main
+    // database until the replica has that row. Only filled while the change log is polled, which empties it
+    private final Map<UUID, Long> awaitingReplica = new ConcurrentHashMap<>();
+    // after every player is changed at once, everything is read from the main database until the replica
+    // has this change log row - 0 once it has
+    private volatile long awaitingReplicaAll;
+    // whether the change log is checked for other servers' changes
+    private final boolean pollsChanges;
+
+    // the latest unwritten state of each changed player - an empty set means their pronouns were cleared
+    private final Map<UUID, Set<String>> pendingWrites = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final int flushBatchSize;
+    private final long flushInterval;
+    // changes that failed to write, kept on disk until they have been
+    private final SqlOutbox outbox;
+    // when each queued change was made, to save alongside it in the outbox
+    private final Map<UUID, Long> changedAt = new ConcurrentHashMap<>();
+    // queued changes replayed from the outbox, which another server may have overwritten since
+    private final Set<UUID> fromOutbox = ConcurrentHashMap.newKeySet();
+    // only used on the writer thread - 0 while writes are succeeding
+    private long retryDelay;
+    private long retryAt;
+
+    // players who have just joined, waiting to be looked up together
+    private final Set<UUID> prefetchQueue = new LinkedHashSet<>();
+    private boolean prefetchScheduled;
+    private final ScheduledExecutorService prefetcher;
+    private final long prefetchWindow;
+    private final int prefetchBatchSize;
+    private final LongAdder prefetchBatches = new LongAdder();
+    private final LongAdder prefetchedPlayers = new LongAdder();
+    private volatile int largestPrefetchBatch;
+
+    private final MysqlSchemaMigrator migrator;
+    // reads and writes use the legacy table until it has been migrated
+    private volatile MysqlTableLayout layout;
+    private volatile boolean closing;
+    // set while the schema is migrated in the background
+    private volatile boolean migrating;
+
+    // null until the change log table exists, and for databases only this server uses
+    private volatile SqlChangeLog changeLog;
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
 
     public MysqlFileStorage(ProNouns plugin) throws MysqlConnectionException {
-        this.plugin = plugin;
+        this(plugin, SqlDialect.MYSQL);
+    }
+
+    MysqlFileStorage(ProNouns plugin, SqlDialect dialect) throws MysqlConnectionException {
+        this(dialect, dialect.shared(), ds -> dialect.configure(ds, plugin), dialect.openReadReplica(plugin),
+            plugin.getConfigHandler().getSqlConnectionData(), plugin.getPlatform().getConfigPath(plugin),
+            plugin.getPlatform().getLogger());
+    }
+
+    /**
+     * @param shared     whether other servers may be using the same database, see {@link SqlDialect#shared()}
+     * @param configure  points the data source at the database
+     * @param replica    where to send reads, or null to read from the main database
+     * @param settings   the write, sync and prefetch settings - the connection details in it aren't used
+     * @param dataFolder where to keep the outbox
+     */
+    MysqlFileStorage(SqlDialect dialect, boolean shared, Consumer<HikariDataSource> configure,
+                     @Nullable HikariDataSource replica, SqlInfoContainer settings, Path dataFolder, Logger logger)
+        throws MysqlConnectionException {
+        this.logger = logger;
+        this.dialect = dialect;
+        this.shared = shared;
+        this.replica = replica;
         try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
+            Class.forName(dialect.driverClass());
         } catch (ClassNotFoundException e) {
-            plugin.getPlatform().getLogger().severe("MySQL driver not found! Unable to continue!");
+            logger.severe(dialect.displayName() + " driver not found! Unable to continue!");
             throw new MysqlConnectionException();
         }
-        SqlInfoContainer sqlData = plugin.getConfigHandler().getSqlConnectionData();
+        ds.setDriverClassName(dialect.driverClass());
+        configure.accept(ds);
 
-        ds.setJdbcUrl("jdbc:mysql://" + sqlData.getHost() + ":" + sqlData.getPort() + "/"
-            + sqlData.getDatabase() + "?useSSL=false");
-        ds.setUsername(sqlData.getUsername());
-        ds.setPassword(sqlData.getPassword());
-        ds.addDataSourceProperty("cachePrepStmts", "true");
-        ds.addDataSourceProperty("prepStmtCacheSize", "250");
-        ds.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-        ds.addDataSourceProperty("useServerPrepStmts ", "true");
+        migrator = new MysqlSchemaMigrator(ds, dialect, logger);
+        try {
+            layout = layoutFor(migrator.prepare());
+            logger.info("Connected to " + dialect.displayName() + ".");
+        } catch (SQLException e) {
+            logger.severe("Failed to connect to " + dialect.displayName() + "! - " + e);
+            ds.close();
+            if (replica != null) {
+                replica.close();
+            }
+            throw new MysqlConnectionException();
+        }
+        if (replica != null) {
+            logger.info("Reading from the " + dialect.displayName() + " read replica.");
+        }
 
-        try (Connection connection = ds.getConnection()) {
-            connection.createStatement().execute("CREATE TABLE IF NOT EXISTS pronouns_players ( playerUuid VARCHAR(36), pronouns TEXT, priority INT )");
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ProNouns " + dialect.displayName() + " writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prefetcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ProNouns " + dialect.displayName() + " prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prefetchWindow = Math.max(0, settings.getPrefetchWindow());
+        prefetchBatchSize = Math.min(BULK_CHUNK_SIZE, Math.max(1, settings.getPrefetchBatchSize()));
+        flushBatchSize = Math.max(1, settings.getFlushBatchSize());
+        flushInterval = Math.max(50, settings.getFlushInterval());
+        long syncInterval = settings.getSyncInterval();
+        pollsChanges = shared && syncInterval > 0;
 
-            // ensure priority column is present
-            ResultSet table = connection.prepareStatement("SHOW COLUMNS FROM pronouns_players WHERE FIELD='priority'").executeQuery();
-            if (!table.next()) {
-                connection.createStatement().execute("ALTER TABLE pronouns_players ADD priority INT DEFAULT 0");
-                plugin.getPlatform().getLogger().warning("Migrated MySQL schema (added priority column).");
+        outbox = new SqlOutbox(dataFolder.resolve("sql-outbox.log"), logger);
+        Map<UUID, SqlOutbox.Change> unwritten = outbox.load();
+        if (!unwritten.isEmpty()) {
+            logger.warning("Writing changes for " + unwritten.size() + " players to "
+                + dialect.displayName() + " that couldn't be written before the server last stopped.");
+            unwritten.forEach((uuid, change) -> {
+                pendingWrites.put(uuid, Collections.unmodifiableSet(change.sets()));
+                changedAt.put(uuid, change.changedAt());
+                fromOutbox.add(uuid);
+            });
+        }
+
+        if (migrator.getVersion() < MysqlSchemaMigrator.LATEST_VERSION) {
+            // runs on the writer thread, so nothing is written while data is being copied
+            flusher.execute(this::migrateSchema);
+        } else {
+            enableChangeLog();
+        }
+        flusher.scheduleWithFixedDelay(this::scheduledFlush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        if (pollsChanges) {
+            flusher.scheduleWithFixedDelay(this::pollChanges, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static MysqlTableLayout layoutFor(int schemaVersion) {
+        return schemaVersion >= 2 ? MysqlTableLayout.INDEXED : MysqlTableLayout.LEGACY;
+    }
+
+    private void migrateSchema() {
+        // waits for any flush already running, and stops later ones until the data has been copied
+        synchronized (this) {
+            migrating = true;
+        }
+        try {
+            layout = layoutFor(migrator.migrate(() -> closing));
+            if (migrator.getVersion() >= MysqlSchemaMigrator.LATEST_VERSION) {
+                enableChangeLog();
             }
+        } catch (SQLException e) {
+            logger.severe("Failed to migrate " + dialect.displayName() + " schema, the old schema will continue to be used - " + e);
+        } finally {
+            migrating = false;
+        }
+    }
 
-            plugin.getPlatform().getLogger().info("Connected to MySQL.");
+    /**
+     * Starts recording this server's writes in the change log, if other servers could be using the database.
+     */
+    private synchronized void enableChangeLog() {
+        if (!shared || changeLog != null) {
+            return;
+        }
+        SqlChangeLog log = new SqlChangeLog(ds);
+        try {
+            log.start();
         } catch (SQLException e) {
-            plugin.getPlatform().getLogger().severe("Failed to connect to MySQL! - " + e);
-            throw new MysqlConnectionException();
+            // writes are still recorded, and the first poll tries again
+            logger.warning("Failed to read the " + dialect.displayName() + " change log - " + e);
+        }
+        changeLog = log;
+    }
+
+    /**
+     * Picks up players changed by other servers. Only players that are cached here are loaded again -
+     * anyone else will be loaded fresh when they are next needed anyway.
+     */
+    private void pollChanges() {
+        SqlChangeLog changeLog = this.changeLog;
+        if (changeLog == null) {
+            return;
+        }
+        Map<UUID, Long> changed;
+        try {
+            changed = changeLog.poll();
+        } catch (SQLException e) {
+            logger.warning("Failed to check " + dialect.displayName() + " for changes made by other servers - " + e);
+            return;
+        }
+
+        if (changed == null) {
+            if (replica != null) {
+                awaitingReplicaAll = changeLog.newestSeen();
+                recentWrites.invalidateAll();
+                checkReplicaProgress();
+            }
+            cache.invalidateAll();
+            changeListeners.forEach(ChangeListener::allChanged);
+            return;
+        }
+        List<UUID> refresh = new ArrayList<>();
+        for (Map.Entry<UUID, Long> entry : changed.entrySet()) {
+            UUID uuid = entry.getKey();
+            // marked before invalidating, so a replica read that finishes after this can't be cached
+            if (replica != null) {
+                awaitingReplica.merge(uuid, entry.getValue(), Math::max);
+                recentWrites.invalidate(uuid);
+            }
+            if (cache.contains(uuid)) {
+                refresh.add(uuid);
+            }
+            cache.invalidate(uuid);
+        }
+        if (replica != null) {
+            checkReplicaProgress();
+        }
+        if (!refresh.isEmpty()) {
+            loadAll(refresh);
+        }
+        for (UUID uuid : changed.keySet()) {
+            changeListeners.forEach(listener -> listener.playerChanged(uuid));
+        }
+    }
+
+    /**
+     * Finds which of the changes being waited for the read replica now has, so the players they were for
+     * can be read from it again. If the replica can't be reached they stay on the main database.
+     */
+    private void checkReplicaProgress() {
+        Set<Long> waiting = new HashSet<>(awaitingReplica.values());
+        long all = awaitingReplicaAll;
+        if (all != 0) {
+            waiting.add(all);
+        }
+        if (waiting.isEmpty()) {
+            return;
+        }
+        Set<Long> replicated;
+        try (Connection connection = replica.getConnection()) {
+            replicated = SqlChangeLog.present(connection, waiting);
+        } catch (SQLException e) {
+            return;
+        }
+        // only removes entries that haven't been replaced by a newer change in the meantime
+        awaitingReplica.values().removeIf(replicated::contains);
+        if (all != 0 && replicated.contains(all)) {
+            awaitingReplicaAll = 0;
         }
+    }
 
+    /**
+     * @return whether the read replica is known to have the player's latest change, so they can be read from it
+     */
+    private boolean replicaHasChanges(UUID uuid) {
+        return awaitingReplicaAll == 0 && !awaitingReplica.containsKey(uuid);
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
     }
 
     public void onPlayerDisconnect(UUID uuid) {
-        cache.removeAll(uuid);
+        cache.invalidate(uuid);
+    }
+
+    /**
+     * Reloads a player's pronouns in the background, such as when they join. Players prefetched close together
+     * are gathered up and looked up in one query, so a burst of joins doesn't need a connection each.
+     */
+    public void prefetch(UUID uuid) {
+        // forget the cached value first, as it may have been changed by another server
+        cache.invalidate(uuid);
+        synchronized (prefetchQueue) {
+            prefetchQueue.add(uuid);
+            if (!prefetchScheduled) {
+                prefetchScheduled = true;
+                prefetcher.schedule(this::runPrefetch, prefetchWindow, TimeUnit.MILLISECONDS);
+            } else if (prefetchQueue.size() == prefetchBatchSize) {
+                // full - no need to wait for the rest of the window
+                prefetcher.execute(this::runPrefetch);
+            }
+        }
+    }
+
+    private void runPrefetch() {
+        List<UUID> batch = new ArrayList<>();
+        synchronized (prefetchQueue) {
+            for (Iterator<UUID> iterator = prefetchQueue.iterator(); iterator.hasNext() && batch.size() < prefetchBatchSize; ) {
+                batch.add(iterator.next());
+                iterator.remove();
+            }
+            if (prefetchQueue.isEmpty()) {
+                prefetchScheduled = false;
+            } else {
+                prefetcher.execute(this::runPrefetch);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        prefetchBatches.increment();
+        prefetchedPlayers.add(batch.size());
+        largestPrefetchBatch = Math.max(largestPrefetchBatch, batch.size());
+        getPronouns(batch);
+    }
+
+    /**
+     * @return the number of joined players waiting to be prefetched
+     */
+    public int getPrefetchQueueDepth() {
+        synchronized (prefetchQueue) {
+            return prefetchQueue.size();
+        }
+    }
+
+    /**
+     * @return the number of prefetch queries run
+     */
+    public long getPrefetchBatches() {
+        return prefetchBatches.sum();
+    }
+
+    /**
+     * @return the number of players prefetched
+     */
+    public long getPrefetchedPlayers() {
+        return prefetchedPlayers.sum();
+    }
+
+    /**
+     * @return the most players prefetched in one query
+     */
+    public int getLargestPrefetchBatch() {
+        return largestPrefetchBatch;
     }
 
     @Override
@@ -89,89 +426,506 @@ public class MysqlFileStorage implements Storage {
         return getPronouns(uuid, true);
     }
 
+    @Override
+    public Set<String> getCachedPronouns(UUID uuid) {
+        return cache.get(uuid);
+    }
+
+    @Override
+    public PlayerCache getCache() {
+        return cache;
+    }
+
     public Set<String> getPronouns(UUID uuid, boolean useCache) {
-        if (useCache && cache.containsKey(uuid)) return new LinkedHashSet<>(cache.get(uuid));
-        try (Connection connection = ds.getConnection()) {
-            PreparedStatement stmt = connection.prepareStatement("SELECT pronouns FROM pronouns_players WHERE playerUUID=? order by priority");
-            stmt.setString(1, uuid.toString());
-            ResultSet set = stmt.executeQuery();
-            while (set.next()) {
-                cache.put(uuid, set.getString("pronouns"));
-            }
-            stmt.close();
-            set.close();
-            return new LinkedHashSet<>(cache.get(uuid));
-        } catch (SQLException e) {
-            plugin.getPlatform().getLogger().severe("Error getting player pronouns from MySQL - " + e);
+        if (!useCache) {
+            // forget the cached value first, so a write made while loading still wins
+            cache.invalidate(uuid);
+        }
+        boolean replicaAllowed = replicaHasChanges(uuid);
+        try {
+            Set<String> sets = cache.get(uuid, () -> load(uuid, replicaAllowed));
+            if (replicaAllowed && !replicaHasChanges(uuid)) {
+                // changed while this was being read, so what was cached may be from before the change
+                cache.invalidate(uuid);
+            }
+            return sets;
+        } catch (ExecutionException e) {
+            logger.severe("Error getting player pronouns from " + dialect.displayName() + " - " + e.getCause());
             return null;
         }
     }
 
+    private Set<String> load(UUID uuid, boolean replicaAllowed) throws SQLException {
+        Set<String> pending = pendingWrites.get(uuid);
+        if (pending != null) {
+            return pending;
+        }
+        Set<String> written = recentWrites.getIfPresent(uuid);
+        if (written != null) {
+            return written;
+        }
+        MysqlTableLayout layout = this.layout;
+        return read(replicaAllowed, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT pronouns FROM " + layout.table()
+                + " WHERE " + layout.uuidColumn() + "=? ORDER BY priority")) {
+                layout.setUuid(stmt, 1, uuid);
+                Set<String> loaded = new LinkedHashSet<>();
+                try (ResultSet set = stmt.executeQuery()) {
+                    while (set.next()) {
+                        loaded.add(set.getString("pronouns"));
+                    }
+                }
+                return loaded;
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface SqlRead<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Runs a read on the read replica if there is one and it is working, otherwise on the main database.
+     * If the replica fails the read is run again on the main database, and reads stay there for a while
+     * before the replica is tried again.
+     *
+     * @param replicaAllowed false if the replica may not have the latest changes to what is being read
+     */
+    private <T> T read(boolean replicaAllowed, SqlRead<T> read) throws SQLException {
+        if (replica != null && replicaAllowed && System.currentTimeMillis() >= replicaRetryAt) {
+            try (Connection connection = replica.getConnection()) {
+                T result = read.run(connection);
+                replicaReads.increment();
+                if (replicaRetryAt != 0) {
+                    replicaRetryAt = 0;
+                    logger.info("The " + dialect.displayName() + " read replica is working again.");
+                }
+                return result;
+            } catch (SQLException e) {
+                replicaFailovers.increment();
+                if (replicaRetryAt == 0) {
+                    logger.warning("Failed to read from the " + dialect.displayName()
+                        + " read replica, reading from the main database instead - " + e);
+                }
+                replicaRetryAt = System.currentTimeMillis() + REPLICA_RETRY_MILLIS;
+            }
+        }
+        try (Connection connection = ds.getConnection()) {
+            return read.run(connection);
+        }
+    }
+
     @Override
-    public void setPronouns(UUID uuid, Set<String> sets) {
-        cache.removeAll(uuid);
-        cache.putAll(uuid, sets);
-        Task.builder()
-            .action((Platform ignored) -> {
-                try (Connection connection = ds.getConnection()) {
-                    PreparedStatement stmt = connection.prepareStatement("DELETE FROM pronouns_players WHERE playerUuid=?");
-                    stmt.setString(1, uuid.toString());
-                    stmt.execute();
-                    stmt.close();
-
-                    PreparedStatement insStmt = connection.prepareStatement("INSERT INTO pronouns_players VALUES (?,?,?)");
-
-                    int i = 0;
-                    for (String set : sets) {
-                        insStmt.setString(1, uuid.toString());
-                        insStmt.setInt(3, i);
-                        insStmt.setString(2, set);
-
-                        insStmt.addBatch();
-                        i++;
+    public Map<UUID, Set<String>> getPronouns(Collection<UUID> uuids) {
+        return loadAll(uuids);
+    }
+
+    private Map<UUID, Set<String>> loadAll(Collection<UUID> uuids) {
+        Map<UUID, Set<String>> out = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+        // players the replica might be out of date for
+        List<UUID> missingFromReplica = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            Set<String> cached = cache.get(uuid);
+            Set<String> pending = pendingWrites.get(uuid);
+            Set<String> written = recentWrites.getIfPresent(uuid);
+            if (cached != null) {
+                out.put(uuid, cached);
+            } else if (pending != null) {
+                out.put(uuid, new LinkedHashSet<>(pending));
+            } else if (written != null) {
+                out.put(uuid, new LinkedHashSet<>(written));
+            } else if (replicaHasChanges(uuid)) {
+                missing.add(uuid);
+            } else {
+                missingFromReplica.add(uuid);
+            }
+        }
+
+        try {
+            if (!missing.isEmpty()) {
+                out.putAll(read(true, connection -> query(connection, missing)));
+                for (UUID uuid : missing) {
+                    if (!replicaHasChanges(uuid)) {
+                        // changed while this was being read, so what was cached may be from before the change
+                        cache.invalidate(uuid);
                     }
-                    insStmt.executeBatch();
-                    insStmt.close();
-                } catch (SQLException e) {
-                    plugin.getPlatform().getLogger().severe("Error settings player pronouns through MySQL - " + e);
                 }
-            })
-            .async()
-            .build().execute(plugin.getPlatform());
+            }
+            if (!missingFromReplica.isEmpty()) {
+                out.putAll(read(false, connection -> query(connection, missingFromReplica)));
+            }
+        } catch (SQLException e) {
+            logger.severe("Error getting player pronouns from " + dialect.displayName() + " - " + e);
+        }
+        return out;
+    }
+
+    /**
+     * Looks up players with IN (...) queries, caching what is found.
+     */
+    private Map<UUID, Set<String>> query(Connection connection, List<UUID> players) throws SQLException {
+        Map<UUID, Set<String>> out = new HashMap<>();
+        MysqlTableLayout layout = this.layout;
+        for (int start = 0; start < players.size(); start += BULK_CHUNK_SIZE) {
+            List<UUID> chunk = players.subList(start, Math.min(start + BULK_CHUNK_SIZE, players.size()));
+            String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            Map<UUID, Set<String>> found = new HashMap<>();
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT " + layout.uuidColumn() + ", pronouns FROM " + layout.table()
+                + " WHERE " + layout.uuidColumn() + " IN (" + placeholders + ") ORDER BY priority")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    layout.setUuid(stmt, i + 1, chunk.get(i));
+                }
+                try (ResultSet set = stmt.executeQuery()) {
+                    while (set.next()) {
+                        found.computeIfAbsent(layout.getUuid(set), x -> new LinkedHashSet<>())
+                            .add(set.getString("pronouns"));
+                    }
+                }
+            }
+
+            for (UUID uuid : chunk) {
+                out.put(uuid, cache.putLoaded(uuid, found.getOrDefault(uuid, Set.of())));
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public void setPronouns(UUID uuid, Set<String> sets) {
+        cache.put(uuid, sets);
+        pendingWrites.put(uuid, Collections.unmodifiableSet(new LinkedHashSet<>(sets)));
+        changedAt.put(uuid, System.currentTimeMillis());
+        fromOutbox.remove(uuid);
     }
 
     @Override
     public void clearPronouns(UUID uuid) {
-        Task.builder()
-            .action((Platform ignored) -> {
-                try (Connection connection = ds.getConnection()) {
-                    PreparedStatement stmt = connection.prepareStatement("DELETE FROM pronouns_players WHERE playerUuid=?");
-                    stmt.setString(1, uuid.toString());
-                    stmt.execute();
-                    stmt.close();
+        cache.put(uuid, Set.of());
+        pendingWrites.put(uuid, Set.of());
+        changedAt.put(uuid, System.currentTimeMillis());
+        fromOutbox.remove(uuid);
+    }
+
+    /**
+     * Flushes on the writer thread, backing off exponentially while writes are failing.
+     */
+    private void scheduledFlush() {
+        if (System.currentTimeMillis() < retryAt) {
+            return;
+        }
+        if (flushPendingWrites()) {
+            retryDelay = 0;
+        } else {
+            retryDelay = retryDelay == 0 ? flushInterval * 2 : Math.min(MAX_RETRY_DELAY_MILLIS, retryDelay * 2);
+            retryAt = System.currentTimeMillis() + retryDelay;
+        }
+    }
+
+    /**
+     * Writes queued changes to the database, one transaction per batch, until the queue is empty
+     * or a batch fails. Failed batches stay queued and are retried on the next flush, and everything
+     * still queued is saved to the outbox in case the server stops first.
+     * <p>
+     * Nothing is written while the schema is being migrated, as writes to the old table could be missed
+     * by the copy - changes stay queued until it finishes.
+     *
+     * @return false if a batch failed, or changes are waiting for the schema to be migrated
+     */
+    private synchronized boolean flushPendingWrites() {
+        if (migrating) {
+            return pendingWrites.isEmpty();
+        }
+        while (!pendingWrites.isEmpty()) {
+            if (!flushBatch()) {
+                outbox.save(pendingWrites, changedAt);
+                return false;
+            }
+        }
+        outbox.clear();
+        return true;
+    }
+
+    @Override
+    public boolean flush() {
+        return flushPendingWrites();
+    }
+
+    private boolean flushBatch() {
+        Map<UUID, Set<String>> batch = new HashMap<>();
+        for (Map.Entry<UUID, Set<String>> entry : pendingWrites.entrySet()) {
+            if (batch.size() >= flushBatchSize) {
+                break;
+            }
+            batch.put(entry.getKey(), entry.getValue());
+        }
+
+        MysqlTableLayout layout = this.layout;
+        List<Long> changeIds = List.of();
+        List<UUID> changeOrder = List.of();
+        try (Connection connection = ds.getConnection()) {
+            // writes to the legacy table hold the migration lock, so another server sharing the database can't
+            // move everything to the indexed table part way through and leave them behind
+            boolean locked = layout == MysqlTableLayout.LEGACY && shared;
+            if (locked && !migrator.tryLock(connection)) {
+                throw new SQLException("another server is migrating the schema");
+            }
+            try {
+                if (locked) {
+                    layout = layoutFor(migrator.refreshVersion(connection));
+                    this.layout = layout;
+                    if (migrator.getVersion() >= MysqlSchemaMigrator.LATEST_VERSION) {
+                        enableChangeLog();
+                    }
+                }
+                SqlChangeLog changeLog = this.changeLog;
+                connection.setAutoCommit(false);
+                try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + layout.table() + " WHERE " + layout.uuidColumn() + "=?");
+                     PreparedStatement insert = connection.prepareStatement("INSERT INTO " + layout.table()
+                         + " (" + layout.uuidColumn() + ", pronouns, priority) VALUES (?,?,?)");
+                     PreparedStatement changes = changeLog == null ? null : changeLog.prepareInsert(connection)) {
+                    List<UUID> order = new ArrayList<>(batch.size());
+                    if (changes != null && !fromOutbox.isEmpty()) {
+                        dropSuperseded(connection, batch);
+                    }
+                    for (Map.Entry<UUID, Set<String>> entry : batch.entrySet()) {
+                        UUID uuid = entry.getKey();
+                        layout.setUuid(delete, 1, uuid);
+                        delete.addBatch();
+                        if (changes != null) {
+                            changeLog.addInsert(changes, uuid);
+                            order.add(uuid);
+                        }
+
+                        int i = 0;
+                        for (String set : entry.getValue()) {
+                            layout.setUuid(insert, 1, uuid);
+                            insert.setString(2, set);
+                            insert.setInt(3, i);
+                            insert.addBatch();
+                            i++;
+                        }
+                    }
+                    delete.executeBatch();
+                    insert.executeBatch();
+                    if (changes != null) {
+                        changes.executeBatch();
+                        if (replica != null && pollsChanges) {
+                            changeIds = SqlChangeLog.insertedIds(changes);
+                            changeOrder = order;
+                        }
+                    }
+                    connection.commit();
                 } catch (SQLException e) {
-                    plugin.getPlatform().getLogger().severe("Error clearing player pronouns through MySQL - " + e);
+                    connection.rollback();
+                    throw e;
+                }
+            } finally {
+                if (locked) {
+                    migrator.unlock(connection);
                 }
-            }).async().build().execute(plugin.getPlatform());
+            }
+        } catch (SQLException e) {
+            logger.severe("Error writing " + batch.size() + " players' pronouns to " + dialect.displayName() + ", will retry - " + e);
+            return false;
+        }
+
+        if (replica != null) {
+            recentWrites.putAll(batch);
+            // once they drop out of recentWrites, they are read from the main database until the replica has them
+            for (int i = 0; i < Math.min(changeIds.size(), changeOrder.size()); i++) {
+                awaitingReplica.merge(changeOrder.get(i), changeIds.get(i), Math::max);
+            }
+        }
+        // anything changed again while this batch was being written stays queued
+        batch.forEach((uuid, sets) -> {
+            if (pendingWrites.remove(uuid, sets)) {
+                changedAt.remove(uuid);
+            }
+        });
+        fromOutbox.removeAll(batch.keySet());
+        outbox.written(batch.keySet());
+        return true;
+    }
+
+    /**
+     * Leaves out changes replayed from the outbox that another server has made a newer change over,
+     * going by the change log. Players changed too long ago to still be in the change log are written anyway.
+     */
+    private void dropSuperseded(Connection connection, Map<UUID, Set<String>> batch) throws SQLException {
+        List<UUID> replayed = new ArrayList<>();
+        for (UUID uuid : batch.keySet()) {
+            if (fromOutbox.contains(uuid)) {
+                replayed.add(uuid);
+            }
+        }
+        if (replayed.isEmpty()) {
+            return;
+        }
+
+        Map<UUID, Long> lastChanged = SqlChangeLog.lastChanged(connection, replayed);
+        for (UUID uuid : replayed) {
+            Long last = lastChanged.get(uuid);
+            Long replayedAt = changedAt.get(uuid);
+            if (last == null || replayedAt == null || last <= replayedAt) {
+                continue;
+            }
+            Set<String> stale = batch.remove(uuid);
+            if (pendingWrites.remove(uuid, stale)) {
+                changedAt.remove(uuid);
+                fromOutbox.remove(uuid);
+                cache.invalidate(uuid);
+                changeListeners.forEach(listener -> listener.playerChanged(uuid));
+                logger.info("Not writing the change to " + uuid + " from " + outbox.fileName()
+                    + ", as another server has changed them since.");
+            }
+        }
+    }
+
+    /**
+     * @return the number of players with changes that haven't been written to the database yet
+     */
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * @return the number of players with changes saved to the outbox because the database couldn't be written to
+     */
+    public int getOutboxSize() {
+        return outbox.size();
+    }
+
+    public boolean hasReadReplica() {
+        return replica != null;
+    }
+
+    /**
+     * @return whether reads are currently going to the read replica, rather than the main database
+     * because the replica failed
+     */
+    public boolean isReadReplicaAvailable() {
+        return replica != null && System.currentTimeMillis() >= replicaRetryAt;
+    }
+
+    /**
+     * @return the number of reads served by the read replica
+     */
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+
+    /**
+     * @return the number of reads that failed on the read replica and went to the main database instead
+     */
+    public long getReplicaFailovers() {
+        return replicaFailovers.sum();
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        prefetcher.shutdownNow();
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!flushPendingWrites()) {
+            if (outbox.save(pendingWrites, changedAt)) {
+                logger.warning("Failed to write pronouns for " + pendingWrites.size()
+                    + " players to " + dialect.displayName() + " before shutting down - these changes have been saved to "
+                    + outbox.fileName() + " and will be written when the server next starts.");
+            } else {
+                logger.severe("Failed to write pronouns for " + pendingWrites.size()
+                    + " players to " + dialect.displayName() + " before shutting down - these changes have been lost.");
+            }
+        }
+        ds.close();
+        if (replica != null) {
+            replica.close();
+        }
     }
 
     @Override
     public SetMultimap<UUID, String> getAllPronouns() {
-        try (Connection connection = ds.getConnection()) {
-            PreparedStatement stmt = connection.prepareStatement("SELECT * FROM pronouns_players ORDER BY priority");
-            ResultSet set = stmt.executeQuery();
-            SetMultimap<UUID, String> results = MultimapBuilder.hashKeys().hashSetValues().build();
-            while (set.next()) {
-                UUID uuid = UuidUtils.fromString(set.getString("playerUuid"));
-                results.put(uuid, set.getString("pronouns"));
-            }
-            stmt.close();
-            set.close();
-            return results;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            plugin.getPlatform().getLogger().severe("Error getting pronouns from MySQL - " + e);
+        SetMultimap<UUID, String> results = MultimapBuilder.hashKeys().linkedHashSetValues().build();
+        if (!forEachPronouns(results::putAll)) {
+            return MultimapBuilder.hashKeys().hashSetValues().build();
+        }
+        return results;
+    }
+
+    @Override
+    public boolean forEachPronouns(BiConsumer<UUID, List<String>> consumer) {
+        // queued and recent writes are newer than anything in the database, or the replica
+        Map<UUID, Set<String>> pending = new HashMap<>(recentWrites.asMap());
+        pending.putAll(pendingWrites);
+        MysqlTableLayout layout = this.layout;
+        boolean[] started = {false};
+        try {
+            read(true, connection -> {
+                try (Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    stmt.setFetchSize(dialect.streamingFetchSize());
+                    try (ResultSet set = stmt.executeQuery("SELECT " + layout.uuidColumn() + ", pronouns FROM " + layout.table()
+                        + " ORDER BY " + layout.uuidColumn() + ", priority")) {
+                        UUID current = null;
+                        List<String> sets = new ArrayList<>();
+                        while (set.next()) {
+                            UUID uuid = layout.getUuid(set);
+                            if (!uuid.equals(current)) {
+                                started[0] |= current != null;
+                                accept(current, sets, pending, consumer);
+                                current = uuid;
+                                sets = new ArrayList<>();
+                            }
+                            sets.add(set.getString("pronouns"));
+                        }
+                        accept(current, sets, pending, consumer);
+                    }
+                } catch (SQLException e) {
+                    if (started[0]) {
+                        // starting again on the main database would give the consumer some players twice
+                        throw new PartialReadException(e);
+                    }
+                    throw e;
+                }
+                return null;
+            });
+        } catch (SQLException | PartialReadException e) {
+            logger.severe("Error getting pronouns from " + dialect.displayName() + " - "
+                + (e instanceof PartialReadException ? e.getCause() : e));
+            return false;
+        }
+
+        // players whose pronouns haven't been written at all yet
+        pending.forEach((uuid, sets) -> {
+            if (!sets.isEmpty()) {
+                consumer.accept(uuid, new ArrayList<>(sets));
+            }
+        });
+        return true;
+    }
+
+    private static class PartialReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private PartialReadException(SQLException cause) {
+            super(cause);
+        }
+    }
+
+    private static void accept(@Nullable UUID uuid, List<String> stored, Map<UUID, Set<String>> pending,
+                               BiConsumer<UUID, List<String>> consumer) {
+        if (uuid == null) {
+            return;
+        }
+        Set<String> queued = pending.remove(uuid);
+        List<String> sets = queued == null ? stored : new ArrayList<>(queued);
+        if (!sets.isEmpty()) {
+            consumer.accept(uuid, sets);
         }
-        return MultimapBuilder.hashKeys().hashSetValues().build();
     }
-}
\ No newline at end of file
+}
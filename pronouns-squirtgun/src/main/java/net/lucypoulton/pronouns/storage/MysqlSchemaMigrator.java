@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Brings the database schema up to date. The schema version is kept in the {@code pronouns_schema} table -
+ * databases from before it existed are treated as version 0.
+ * <p>
+ * Quick migrations run while the plugin is starting. Migrations that copy data run afterwards in the
+ * background, in small transactions, so the server keeps running while they happen.
+ * <p>
+ * Servers sharing a database take a lock in the database while migrating it, and read the version again
+ * once they have it, so each migration only runs once.
+ */
+class MysqlSchemaMigrator {
+
+    static final int LATEST_VERSION = 3;
+
+    // how many rows to copy per transaction when moving data between tables
+    private static final int COPY_BATCH_SIZE = 1000;
+
+    // held while migrating, so servers sharing a database don't migrate it at the same time
+    private static final String LOCK_NAME = "pronouns_schema_migration";
+    // how long each attempt to take the lock waits, before checking whether to give up
+    private static final int LOCK_WAIT_SECONDS = 5;
+    // how long startup waits for another server's quick migrations
+    private static final long STARTUP_LOCK_TIMEOUT = 60_000;
+
+    private static final String CREATE_INDEXED_TABLE = "CREATE TABLE IF NOT EXISTS pronouns_player_sets ("
+        + " uuid BINARY(16) NOT NULL, priority INT NOT NULL, pronouns TEXT NOT NULL, PRIMARY KEY (uuid, priority) )";
+
+    @FunctionalInterface
+    private interface Step {
+        /**
+         * @return false if the migration was cancelled before it finished
+         */
+        boolean run(BooleanSupplier cancelled) throws SQLException;
+    }
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final boolean background;
+        private final Step step;
+
+        private Migration(int version, String description, boolean background, Step step) {
+            this.version = version;
+            this.description = description;
+            this.background = background;
+            this.step = step;
+        }
+    }
+
+    private final List<Migration> migrations = List.of(
+        new Migration(1, "add priority column", false, this::addPriorityColumn),
+        new Migration(2, "move pronouns to an indexed table", true, this::copyToIndexedTable),
+        new Migration(3, "add change log table", false, this::createChangeLog)
+    );
+
+    private final DataSource ds;
+    private final SqlDialect dialect;
+    private final Logger logger;
+    private volatile int version;
+
+    MysqlSchemaMigrator(DataSource ds, SqlDialect dialect, Logger logger) {
+        this.ds = ds;
+        this.dialect = dialect;
+        this.logger = logger;
+    }
+
+    /**
+     * Reads the schema version, creating the latest schema outright for a new database,
+     * and runs any migrations that don't need to happen in the background.
+     *
+     * @return the schema version afterwards
+     */
+    int prepare() throws SQLException {
+        try (Connection connection = ds.getConnection()) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS pronouns_schema ( version INT NOT NULL )");
+            }
+            int found = readVersion(connection);
+            if (found >= 0 && !hasQuickMigration(found)) {
+                version = found;
+                return version;
+            }
+
+            // other servers sharing the database may be starting up at the same time
+            long deadline = System.currentTimeMillis() + STARTUP_LOCK_TIMEOUT;
+            if (!lock(connection, () -> System.currentTimeMillis() > deadline)) {
+                throw new SQLException("Timed out waiting for another server to finish migrating the schema");
+            }
+            try {
+                found = readVersion(connection);
+                if (found >= 0) {
+                    version = found;
+                } else if (tableExists(connection, MysqlTableLayout.LEGACY.table())) {
+                    version = 0;
+                } else {
+                    try (Statement stmt = connection.createStatement()) {
+                        stmt.execute(CREATE_INDEXED_TABLE);
+                        stmt.execute(SqlChangeLog.CREATE_TABLE);
+                        stmt.execute(SqlChangeLog.CREATE_INDEX);
+                    }
+                    setVersion(connection, LATEST_VERSION);
+                }
+                run(connection, false, () -> false);
+            } finally {
+                dialect.unlock(connection, LOCK_NAME);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Runs every remaining migration. If another server sharing the database is already migrating it,
+     * this waits for that server to finish, and then only runs what it didn't.
+     *
+     * @param cancelled checked between batches, and while waiting for another server - once it returns true,
+     *                  the current migration stops and is started again next time
+     * @return the schema version afterwards
+     */
+    int migrate(BooleanSupplier cancelled) throws SQLException {
+        if (version >= LATEST_VERSION) {
+            return version;
+        }
+        try (Connection connection = ds.getConnection()) {
+            if (!lock(connection, cancelled)) {
+                return version;
+            }
+            try {
+                refreshVersion(connection);
+                run(connection, true, cancelled);
+            } finally {
+                dialect.unlock(connection, LOCK_NAME);
+            }
+        }
+        return version;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Reads the schema version again, in case another server sharing the database has migrated it.
+     *
+     * @return the schema version
+     */
+    int refreshVersion(Connection connection) throws SQLException {
+        int found = readVersion(connection);
+        // the version only ever goes up
+        if (found > version) {
+            version = found;
+        }
+        return version;
+    }
+
+    /**
+     * Takes the migration lock on the given connection if no other server has it, without waiting.
+     * Must be released with {@link #unlock} before the connection is closed.
+     *
+     * @return whether the lock was taken
+     */
+    boolean tryLock(Connection connection) throws SQLException {
+        return dialect.lock(connection, LOCK_NAME, 0);
+    }
+
+    void unlock(Connection connection) throws SQLException {
+        dialect.unlock(connection, LOCK_NAME);
+    }
+
+    /**
+     * @return the version stored in the schema table, or -1 if there isn't one
+     */
+    private static int readVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet set = stmt.executeQuery("SELECT version FROM pronouns_schema")) {
+            return set.next() ? set.getInt("version") : -1;
+        }
+    }
+
+    /**
+     * @return whether the next migration after the given version runs while starting up
+     */
+    private boolean hasQuickMigration(int version) {
+        for (Migration migration : migrations) {
+            if (migration.version > version) {
+                return !migration.background;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the migration lock on the given connection, waiting for as long as another server holds it.
+     *
+     * @return false if cancelled before the lock was taken
+     */
+    private boolean lock(Connection connection, BooleanSupplier cancelled) throws SQLException {
+        boolean waiting = false;
+        while (!dialect.lock(connection, LOCK_NAME, LOCK_WAIT_SECONDS)) {
+            if (cancelled.getAsBoolean()) {
+                return false;
+            }
+            if (!waiting) {
+                logger.info("Waiting for another server to finish migrating the " + dialect.displayName() + " schema...");
+                waiting = true;
+            }
+        }
+        return true;
+    }
+
+    private void run(Connection connection, boolean background, BooleanSupplier cancelled) throws SQLException {
+        for (Migration migration : migrations) {
+            if (migration.version <= version) {
+                continue;
+            }
+            if (migration.background && !background) {
+                return;
+            }
+            logger.info("Migrating " + dialect.displayName() + " schema to version " + migration.version + " (" + migration.description + ")...");
+            if (!migration.step.run(cancelled)) {
+                logger.warning(dialect.displayName() + " schema migration to version " + migration.version + " was interrupted, it will be resumed on next startup.");
+                return;
+            }
+            setVersion(connection, migration.version);
+            logger.warning("Migrated " + dialect.displayName() + " schema to version " + migration.version + ".");
+        }
+    }
+
+    private void setVersion(Connection connection, int version) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DELETE FROM pronouns_schema");
+            stmt.execute("INSERT INTO pronouns_schema VALUES (" + version + ")");
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        this.version = version;
+    }
+
+    private static boolean tableExists(Connection connection, String table) throws SQLException {
+        DatabaseMetaData meta = connection.getMetaData();
+        // some databases report unquoted names in upper case
+        for (String name : new String[]{table, table.toUpperCase(Locale.ROOT)}) {
+            try (ResultSet set = meta.getTables(connection.getCatalog(), null, name, null)) {
+                if (set.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean columnExists(Connection connection, String table, String column) throws SQLException {
+        DatabaseMetaData meta = connection.getMetaData();
+        for (String tableName : new String[]{table, table.toUpperCase(Locale.ROOT)}) {
+            try (ResultSet set = meta.getColumns(connection.getCatalog(), null, tableName, null)) {
+                while (set.next()) {
+                    if (set.getString("COLUMN_NAME").equalsIgnoreCase(column)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean addPriorityColumn(BooleanSupplier cancelled) throws SQLException {
+        try (Connection connection = ds.getConnection()) {
+            if (!columnExists(connection, "pronouns_players", "priority")) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("ALTER TABLE pronouns_players ADD priority INT DEFAULT 0");
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean createChangeLog(BooleanSupplier cancelled) throws SQLException {
+        try (Connection connection = ds.getConnection(); Statement stmt = connection.createStatement()) {
+            // the index is only created along with the table, so an earlier attempt can't have left it behind
+            if (!tableExists(connection, "pronouns_changes")) {
+                stmt.execute(SqlChangeLog.CREATE_TABLE);
+                stmt.execute(SqlChangeLog.CREATE_INDEX);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies every row from the legacy table into the indexed one. Rows are read in one streamed query
+     * and written in batches. Priorities are renumbered, as rows from before the priority column was added
+     * all share priority 0. The legacy table is left in place.
+     */
+    private boolean copyToIndexedTable(BooleanSupplier cancelled) throws SQLException {
+        try (Connection reader = ds.getConnection(); Connection writer = ds.getConnection()) {
+            try (Statement stmt = writer.createStatement()) {
+                stmt.execute(CREATE_INDEXED_TABLE);
+                // anything here is left over from an interrupted attempt
+                stmt.execute("DELETE FROM pronouns_player_sets");
+            }
+
+            writer.setAutoCommit(false);
+            try (Statement select = reader.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                 PreparedStatement insert = writer.prepareStatement("INSERT INTO pronouns_player_sets VALUES (?,?,?)")) {
+                select.setFetchSize(dialect.streamingFetchSize());
+                ResultSet rows = select.executeQuery("SELECT playerUuid, pronouns FROM pronouns_players ORDER BY playerUuid, priority");
+
+                UUID lastUuid = null;
+                Set<String> seen = new HashSet<>();
+                int priority = 0;
+                int batched = 0;
+                long copied = 0;
+                long skipped = 0;
+                while (rows.next()) {
+                    String pronouns = rows.getString("pronouns");
+                    UUID uuid;
+                    try {
+                        uuid = UUID.fromString(rows.getString("playerUuid"));
+                    } catch (IllegalArgumentException | NullPointerException e) {
+                        skipped++;
+                        continue;
+                    }
+                    if (!uuid.equals(lastUuid)) {
+                        lastUuid = uuid;
+                        seen.clear();
+                        priority = 0;
+                    }
+                    if (pronouns == null || !seen.add(pronouns)) {
+                        skipped++;
+                        continue;
+                    }
+
+                    insert.setBytes(1, MysqlTableLayout.toBytes(uuid));
+                    insert.setInt(2, priority++);
+                    insert.setString(3, pronouns);
+                    insert.addBatch();
+                    if (++batched >= COPY_BATCH_SIZE) {
+                        insert.executeBatch();
+                        writer.commit();
+                        copied += batched;
+                        batched = 0;
+                        if (copied % (COPY_BATCH_SIZE * 100L) == 0) {
+                            logger.info("Copied " + copied + " rows...");
+                        }
+                        if (cancelled.getAsBoolean()) {
+                            return false;
+                        }
+                    }
+                }
+                insert.executeBatch();
+                writer.commit();
+                copied += batched;
+                logger.info("Copied " + copied + " rows" + (skipped > 0 ? ", skipped " + skipped + " invalid or duplicate rows" : "")
+                    + ". The old pronouns_players table has been kept and can be dropped once you're happy.");
+                return true;
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import net.lucypoulton.squirtgun.util.UuidUtils;
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * The tables player pronouns have been stored in. Every table has a UUID column, a {@code pronouns} column
+ * and a {@code priority} column, but they differ in name and in how the UUID is stored.
+ */
+enum MysqlTableLayout {
+    /**
+     * The original table - UUIDs are stored as text, and there are no keys or indexes.
+     */
+    LEGACY("pronouns_players", "playerUuid") {
+        @Override
+        void setUuid(PreparedStatement stmt, int index, UUID uuid) throws SQLException {
+            stmt.setString(index, uuid.toString());
+        }
+
+        @Override
+        UUID getUuid(ResultSet set) throws SQLException {
+            return UuidUtils.fromString(set.getString(uuidColumn()));
+        }
+    },
+
+    /**
+     * UUIDs are stored as 16 bytes, with a primary key on (uuid, priority).
+     */
+    INDEXED("pronouns_player_sets", "uuid") {
+        @Override
+        void setUuid(PreparedStatement stmt, int index, UUID uuid) throws SQLException {
+            stmt.setBytes(index, toBytes(uuid));
+        }
+
+        @Override
+        UUID getUuid(ResultSet set) throws SQLException {
+            ByteBuffer buffer = ByteBuffer.wrap(set.getBytes(uuidColumn()));
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+    };
+
+    private final String table;
+    private final String uuidColumn;
+
+    MysqlTableLayout(String table, String uuidColumn) {
+        this.table = table;
+        this.uuidColumn = uuidColumn;
+    }
+
+    String table() {
+        return table;
+    }
+
+    String uuidColumn() {
+        return uuidColumn;
+    }
+
+    abstract void setUuid(PreparedStatement stmt, int index, UUID uuid) throws SQLException;
+
+    abstract UUID getUuid(ResultSet set) throws SQLException;
+
+    static byte[] toBytes(UUID uuid) {
+        return ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+    }
+}
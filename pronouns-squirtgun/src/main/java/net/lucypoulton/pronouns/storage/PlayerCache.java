@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe cache of players' stored pronouns, for storages to keep recently used players in memory.
+ * It holds a bounded number of players, and forgets players that haven't been accessed for a while,
+ * so missing a player's leave event can't leak their entry.
+ */
+public final class PlayerCache {
+
+    private static final long DEFAULT_MAXIMUM_SIZE = 10_000;
+    private static final long DEFAULT_EXPIRY_MINUTES = 30;
+
+    private final Cache<UUID, Set<String>> cache;
+
+    public PlayerCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRY_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param maximumSize       the most players to hold at once
+     * @param expireAfterAccess how long a player stays cached after they were last read or written
+     */
+    public PlayerCache(long maximumSize, long expireAfterAccess, TimeUnit unit) {
+        cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterAccess(expireAfterAccess, unit)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * @return a copy of the player's cached pronouns, or null if they aren't cached
+     */
+    public @Nullable Set<String> get(UUID uuid) {
+        Set<String> sets = cache.getIfPresent(uuid);
+        return sets == null ? null : new LinkedHashSet<>(sets);
+    }
+
+    /**
+     * Gets a player's pronouns, loading and caching them if they aren't cached. If several threads miss
+     * the same player at once, only one of them runs the loader and the rest wait for its result.
+     * An empty result is cached like any other, so players without pronouns aren't looked up again.
+     *
+     * @return a copy of the player's pronouns
+     * @throws ExecutionException if the loader threw - nothing is cached in that case
+     */
+    public Set<String> get(UUID uuid, Callable<Set<String>> loader) throws ExecutionException {
+        try {
+            return new LinkedHashSet<>(cache.get(uuid, () -> Collections.unmodifiableSet(new LinkedHashSet<>(loader.call()))));
+        } catch (UncheckedExecutionException e) {
+            throw new ExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * Replaces a player's cached pronouns. Use this when the pronouns have just been changed.
+     */
+    public void put(UUID uuid, Set<String> sets) {
+        cache.put(uuid, Collections.unmodifiableSet(new LinkedHashSet<>(sets)));
+    }
+
+    /**
+     * Caches pronouns that were just loaded, unless the player was cached in the meantime -
+     * a write that happened while loading is newer than what was loaded.
+     *
+     * @return a copy of whichever pronouns ended up cached
+     */
+    public Set<String> putLoaded(UUID uuid, Set<String> sets) {
+        Set<String> existing = cache.asMap().putIfAbsent(uuid, Collections.unmodifiableSet(new LinkedHashSet<>(sets)));
+        return new LinkedHashSet<>(existing == null ? sets : existing);
+    }
+
+    /**
+     * Checks whether a player is cached, without counting as a hit or miss.
+     */
+    public boolean contains(UUID uuid) {
+        return cache.asMap().containsKey(uuid);
+    }
+
+    public void invalidate(UUID uuid) {
+        cache.invalidate(uuid);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return the hit, miss and eviction counts since the cache was created
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
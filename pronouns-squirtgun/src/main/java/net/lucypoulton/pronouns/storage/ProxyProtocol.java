@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The plugin messages sent between a BungeeCord proxy and its backend servers, so that backends can be served
+ * pronouns by the proxy instead of each querying storage themselves.
+ * <p>
+ * Every message is a type byte and a player's UUID. Push and set messages are followed by the player's
+ * pronoun sets in full. Messages end with a signature made with a secret shared by the proxy and its backends,
+ * as a player can send anything on this channel if the proxy doesn't stop them.
+ */
+public final class ProxyProtocol {
+
+    public static final String CHANNEL = "pronouns:sync";
+
+    /**
+     * Proxy to backend - a player's current pronouns.
+     */
+    public static final byte PUSH = 'P';
+    /**
+     * Backend to proxy - asks for a player's pronouns to be pushed.
+     */
+    public static final byte REQUEST = 'R';
+    /**
+     * Backend to proxy - changes a player's pronouns.
+     */
+    public static final byte SET = 'S';
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+
+    private final SecretKeySpec key;
+
+    /**
+     * @param secret the secret shared by the proxy and every backend server
+     */
+    public ProxyProtocol(String secret) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+    }
+
+    public static final class Message {
+        private final byte type;
+        private final UUID uuid;
+        private final Set<String> sets;
+
+        private Message(byte type, UUID uuid, Set<String> sets) {
+            this.type = type;
+            this.uuid = uuid;
+            this.sets = sets;
+        }
+
+        public byte type() {
+            return type;
+        }
+
+        public UUID uuid() {
+            return uuid;
+        }
+
+        /**
+         * @return the player's pronoun sets in the form given by {@code PronounSet.toString()},
+         * or an empty set for request messages
+         */
+        public Set<String> sets() {
+            return sets;
+        }
+    }
+
+    public byte[] encode(byte type, UUID uuid, Set<String> sets) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            if (type != REQUEST) {
+                out.writeShort(sets.size());
+                for (String set : sets) {
+                    out.writeUTF(set);
+                }
+            }
+        } catch (IOException e) {
+            // never thrown when writing to a byte array
+            throw new UncheckedIOException(e);
+        }
+        byte[] body = bytes.toByteArray();
+        byte[] message = Arrays.copyOf(body, body.length + MAC_LENGTH);
+        System.arraycopy(sign(body), 0, message, body.length, MAC_LENGTH);
+        return message;
+    }
+
+    public byte[] request(UUID uuid) {
+        return encode(REQUEST, uuid, Set.of());
+    }
+
+    /**
+     * @throws IOException if the message isn't signed with the shared secret, is truncated or is of an unknown type
+     */
+    public Message decode(byte[] data) throws IOException {
+        if (data.length <= MAC_LENGTH) {
+            throw new IOException("message too short");
+        }
+        byte[] body = Arrays.copyOf(data, data.length - MAC_LENGTH);
+        if (!MessageDigest.isEqual(sign(body), Arrays.copyOfRange(data, body.length, data.length))) {
+            throw new IOException("bad signature - check the secret matches on the proxy and every server");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            byte type = in.readByte();
+            if (type != PUSH && type != REQUEST && type != SET) {
+                throw new IOException("unknown message type " + type);
+            }
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            Set<String> sets = new LinkedHashSet<>();
+            if (type != REQUEST) {
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    sets.add(in.readUTF());
+                }
+            }
+            return new Message(type, uuid, sets);
+        }
+    }
+
+    private byte[] sign(byte[] body) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(body);
+        } catch (GeneralSecurityException e) {
+            // every Java platform has HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Storage for a backend server behind a BungeeCord proxy running ProNouns. The proxy pushes each player's
+ * pronouns over plugin messaging when they join and whenever they change, so they are served from memory here.
+ * Players that haven't been pushed are asked for, and changes are sent to the proxy to be stored.
+ * <p>
+ * If the proxy doesn't answer, the server's own storage is opened and used directly instead.
+ */
+public class ProxyStorage implements Storage {
+
+    @FunctionalInterface
+    public interface MessageSender {
+        /**
+         * Sends a plugin message to the proxy. Plugin messages travel over a player's connection,
+         * so this needs at least one player to be online.
+         *
+         * @param about the player the message is about, whose connection should be used if they are online
+         * @return false if there was no player to send it through
+         */
+        boolean send(UUID about, byte[] message);
+    }
+
+    private static final long REQUEST_TIMEOUT_MILLIS = 500;
+    // once the proxy fails to answer, storage is used directly for this long before asking the proxy again
+    private static final long PROXY_ABSENT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final PlayerCache pushed = new PlayerCache();
+    private final Map<UUID, Request> requests = new ConcurrentHashMap<>();
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private final MessageSender sender;
+    private final ProxyProtocol protocol;
+    private final Callable<Storage> fallbackOpener;
+    private final BooleanSupplier mayBlock;
+    private final Logger logger;
+
+    private volatile Storage fallback;
+    private volatile long proxyAbsentUntil;
+
+    private static final class Request {
+        // failed with a TimeoutException if the proxy doesn't answer in time
+        private final CompletableFuture<Set<String>> reply = new CompletableFuture<Set<String>>()
+            .orTimeout(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param fallbackOpener opens the server's own storage, for when the proxy doesn't answer
+     * @param mayBlock       whether the current thread can wait for the proxy to answer. This must be false
+     *                       on the thread that receives plugin messages, as the answer could never arrive
+     */
+    public ProxyStorage(MessageSender sender, ProxyProtocol protocol, Callable<Storage> fallbackOpener,
+                        BooleanSupplier mayBlock, Logger logger) {
+        this.sender = sender;
+        this.protocol = protocol;
+        this.fallbackOpener = fallbackOpener;
+        this.mayBlock = mayBlock;
+        this.logger = logger;
+    }
+
+    /**
+     * Handles a plugin message from the proxy.
+     */
+    public void handleMessage(byte[] data) {
+        ProxyProtocol.Message message;
+        try {
+            message = protocol.decode(data);
+        } catch (IOException e) {
+            logger.warning("Ignoring an invalid pronoun message - " + e);
+            return;
+        }
+        if (message.type() != ProxyProtocol.PUSH) {
+            return;
+        }
+
+        proxyAbsentUntil = 0;
+        pushed.put(message.uuid(), message.sets());
+        Request request = requests.remove(message.uuid());
+        if (request != null) {
+            request.reply.complete(message.sets());
+        }
+        changeListeners.forEach(listener -> listener.playerChanged(message.uuid()));
+    }
+
+    private boolean proxyAvailable() {
+        return System.currentTimeMillis() >= proxyAbsentUntil;
+    }
+
+    private synchronized @Nullable Storage fallback() {
+        if (fallback == null) {
+            try {
+                Storage opened = fallbackOpener.call();
+                changeListeners.forEach(opened::addChangeListener);
+                fallback = opened;
+                logger.warning("The proxy isn't sending pronouns, so storage is being used directly. "
+                    + "Is ProNouns installed on the proxy?");
+            } catch (Exception e) {
+                logger.severe("Failed to open pronoun storage - " + e);
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * @return the player's pronouns, or null if they have been asked for but the current thread can't wait
+     * for the answer. Listeners are told about the player once it arrives, or once the proxy is given up on
+     */
+    @Override
+    public @Nullable Set<String> getPronouns(UUID uuid) {
+        Set<String> cached = pushed.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (proxyAvailable()) {
+            Request request = requests.get(uuid);
+            if (request == null) {
+                Request sent = new Request();
+                request = requests.putIfAbsent(uuid, sent);
+                if (request == null) {
+                    request = sent;
+                    if (sender.send(uuid, protocol.request(uuid))) {
+                        sent.reply.whenComplete((sets, error) -> {
+                            if (error != null) {
+                                expire(uuid, sent);
+                            }
+                        });
+                    } else {
+                        requests.remove(uuid, sent);
+                        request = null;
+                    }
+                }
+            }
+            if (request != null) {
+                if (!mayBlock.getAsBoolean()) {
+                    return null;
+                }
+                try {
+                    return new LinkedHashSet<>(request.reply.get());
+                } catch (ExecutionException e) {
+                    // timed out, and has been expired
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        Storage storage = fallback();
+        return storage == null ? new LinkedHashSet<>() : storage.getPronouns(uuid);
+    }
+
+    /**
+     * Gives up on the proxy after it didn't answer a request. Listeners are told about the player,
+     * so anything that couldn't wait for the answer looks them up again, this time from storage.
+     */
+    private void expire(UUID uuid, Request request) {
+        if (requests.remove(uuid, request)) {
+            proxyAbsentUntil = System.currentTimeMillis() + PROXY_ABSENT_MILLIS;
+            changeListeners.forEach(listener -> listener.playerChanged(uuid));
+        }
+    }
+
+    @Override
+    public @Nullable Set<String> getCachedPronouns(UUID uuid) {
+        Set<String> cached = pushed.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
+        Storage storage = fallback;
+        return storage == null ? null : storage.getCachedPronouns(uuid);
+    }
+
+    @Override
+    public void setPronouns(UUID uuid, Set<String> sets) {
+        pushed.put(uuid, sets);
+        if (proxyAvailable() && sender.send(uuid, protocol.encode(ProxyProtocol.SET, uuid, sets))) {
+            return;
+        }
+        Storage storage = fallback();
+        if (storage != null) {
+            storage.setPronouns(uuid, sets);
+        }
+    }
+
+    @Override
+    public void clearPronouns(UUID uuid) {
+        setPronouns(uuid, Set.of());
+    }
+
+    /**
+     * The proxy only sends players one at a time, so this reads the server's own storage.
+     */
+    @Override
+    public SetMultimap<UUID, String> getAllPronouns() {
+        Storage storage = fallback();
+        return storage == null ? MultimapBuilder.hashKeys().hashSetValues().build()
+            : storage.getAllPronouns();
+    }
+
+    /**
+     * The proxy only sends players one at a time, so this reads the server's own storage.
+     */
+    @Override
+    public boolean forEachPronouns(BiConsumer<UUID, List<String>> consumer) {
+        Storage storage = fallback();
+        return storage != null && storage.forEachPronouns(consumer);
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+        Storage storage = fallback;
+        if (storage != null) {
+            storage.addChangeListener(listener);
+        }
+    }
+
+    @Override
+    public PlayerCache getCache() {
+        return pushed;
+    }
+
+    public void onPlayerDisconnect(UUID uuid) {
+        pushed.invalidate(uuid);
+    }
+
+    @Override
+    public boolean flush() {
+        Storage storage = fallback;
+        return storage == null || storage.flush();
+    }
+
+    @Override
+    public void close() {
+        Storage storage = fallback;
+        if (storage != null) {
+            storage.close();
+        }
+    }
+}
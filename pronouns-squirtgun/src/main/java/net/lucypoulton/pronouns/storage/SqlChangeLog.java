@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets servers sharing a database find out which players were changed by the others. Every write adds a row
+ * to the {@code pronouns_changes} table in the same transaction, and each server polls the table for rows
+ * added since it last looked.
+ * <p>
+ * Row ids are handed out when a row is inserted, but transactions can commit in a different order, so a row
+ * can appear with a lower id than one already seen. To catch these, each poll looks back over the last few
+ * ids it has seen, skipping the ones it has already handled.
+ */
+class SqlChangeLog {
+
+    static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS pronouns_changes ("
+        + " id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, uuid BINARY(16) NOT NULL, node BINARY(16) NOT NULL,"
+        + " changed_at BIGINT NOT NULL )";
+    static final String CREATE_INDEX = "CREATE INDEX pronouns_changes_changed_at ON pronouns_changes (changed_at)";
+
+    // how many ids before the newest seen to look back over for rows that committed late
+    private static final long LOOKBACK_IDS = 1000;
+    // the most rows to read in one poll - the rest are read on the next one
+    private static final int MAX_ROWS_PER_POLL = 5000;
+    // rows older than this are deleted. A server that hasn't polled for this long may have missed changes
+    private static final long RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // the most ids to look up in one IN (...) query
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private final DataSource ds;
+    // identifies this server's rows, so it doesn't refresh players it changed itself
+    private final byte[] node = MysqlTableLayout.toBytes(UUID.randomUUID());
+
+    // only touched by the polling thread, apart from the first start()
+    private boolean started;
+    private long newestSeen;
+    private final TreeSet<Long> recentlySeen = new TreeSet<>();
+    private long lastPoll;
+    private long lastPrune;
+
+    SqlChangeLog(DataSource ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Skips every change made before now, as nothing has been cached yet.
+     */
+    void start() throws SQLException {
+        recentlySeen.clear();
+        try (Connection connection = ds.getConnection(); Statement stmt = connection.createStatement()) {
+            try (ResultSet set = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM pronouns_changes")) {
+                set.next();
+                newestSeen = set.getLong(1);
+            }
+            try (ResultSet set = stmt.executeQuery("SELECT id FROM pronouns_changes WHERE id > " + (newestSeen - LOOKBACK_IDS))) {
+                while (set.next()) {
+                    recentlySeen.add(set.getLong("id"));
+                }
+            }
+        }
+        lastPoll = System.currentTimeMillis();
+        started = true;
+    }
+
+    /**
+     * @return the id of the newest row seen so far
+     */
+    long newestSeen() {
+        return newestSeen;
+    }
+
+    PreparedStatement prepareInsert(Connection connection) throws SQLException {
+        return connection.prepareStatement("INSERT INTO pronouns_changes (uuid, node, changed_at) VALUES (?,?,?)",
+            Statement.RETURN_GENERATED_KEYS);
+    }
+
+    void addInsert(PreparedStatement insert, UUID uuid) throws SQLException {
+        insert.setBytes(1, MysqlTableLayout.toBytes(uuid));
+        insert.setBytes(2, node);
+        insert.setLong(3, System.currentTimeMillis());
+        insert.addBatch();
+    }
+
+    /**
+     * @return the ids of the rows inserted by the statement's last batch, in the order they were added
+     */
+    static List<Long> insertedIds(PreparedStatement insert) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        try (ResultSet set = insert.getGeneratedKeys()) {
+            while (set.next()) {
+                ids.add(set.getLong(1));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return which of the given rows can be seen through the connection - used to find out whether a read
+     * replica has caught up with them
+     */
+    static Set<Long> present(Connection connection, Collection<Long> ids) throws SQLException {
+        Set<Long> out = new HashSet<>();
+        List<Long> list = new ArrayList<>(ids);
+        for (int start = 0; start < list.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = list.subList(start, Math.min(start + MAX_IDS_PER_QUERY, list.size()));
+            String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT id FROM pronouns_changes WHERE id IN (" + placeholders + ")")) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setLong(i + 1, chunk.get(i));
+                }
+                try (ResultSet set = stmt.executeQuery()) {
+                    while (set.next()) {
+                        out.add(set.getLong("id"));
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return when each of the given players was last changed by any server, for those that are still in the log
+     */
+    static Map<UUID, Long> lastChanged(Connection connection, Collection<UUID> uuids) throws SQLException {
+        Map<UUID, Long> out = new HashMap<>();
+        String placeholders = String.join(",", Collections.nCopies(uuids.size(), "?"));
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT uuid, MAX(changed_at) AS last_changed"
+            + " FROM pronouns_changes WHERE uuid IN (" + placeholders + ") GROUP BY uuid")) {
+            int i = 1;
+            for (UUID uuid : uuids) {
+                stmt.setBytes(i++, MysqlTableLayout.toBytes(uuid));
+            }
+            try (ResultSet set = stmt.executeQuery()) {
+                while (set.next()) {
+                    ByteBuffer buffer = ByteBuffer.wrap(set.getBytes("uuid"));
+                    out.put(new UUID(buffer.getLong(), buffer.getLong()), set.getLong("last_changed"));
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Reads the players other servers have changed since the last poll, and occasionally deletes old rows.
+     *
+     * @return the changed players, with the id of the newest row for each, or null if this server went too long
+     * without polling and may have missed changes - everything cached should then be treated as changed
+     */
+    @Nullable Map<UUID, Long> poll() throws SQLException {
+        long now = System.currentTimeMillis();
+        if (!started || now - lastPoll > RETENTION_MILLIS) {
+            start();
+            return null;
+        }
+
+        Map<UUID, Long> changed = new LinkedHashMap<>();
+        try (Connection connection = ds.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(
+                 "SELECT id, uuid, node FROM pronouns_changes WHERE id > ? ORDER BY id LIMIT " + MAX_ROWS_PER_POLL)) {
+            stmt.setLong(1, Math.max(0, newestSeen - LOOKBACK_IDS));
+            try (ResultSet set = stmt.executeQuery()) {
+                while (set.next()) {
+                    long id = set.getLong("id");
+                    if (id <= newestSeen && !recentlySeen.add(id)) {
+                        continue;
+                    }
+                    if (id > newestSeen) {
+                        newestSeen = id;
+                        recentlySeen.add(id);
+                    }
+                    if (!Arrays.equals(set.getBytes("node"), node)) {
+                        ByteBuffer buffer = ByteBuffer.wrap(set.getBytes("uuid"));
+                        changed.merge(new UUID(buffer.getLong(), buffer.getLong()), id, Math::max);
+                    }
+                }
+            }
+            recentlySeen.headSet(newestSeen - LOOKBACK_IDS, true).clear();
+
+            if (now - lastPrune > PRUNE_INTERVAL_MILLIS) {
+                lastPrune = now;
+                try (PreparedStatement prune = connection.prepareStatement("DELETE FROM pronouns_changes WHERE changed_at < ?")) {
+                    prune.setLong(1, now - RETENTION_MILLIS);
+                    prune.executeUpdate();
+                }
+            }
+        }
+        lastPoll = now;
+        return changed;
+    }
+}
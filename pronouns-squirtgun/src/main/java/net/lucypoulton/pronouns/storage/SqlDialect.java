@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import com.zaxxer.hikari.HikariDataSource;
+import net.lucypoulton.pronouns.ProNouns;
+import net.lucypoulton.pronouns.config.SqlInfoContainer;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The databases {@link MysqlFileStorage} can run against. Queries are shared between them -
+ * this only covers connecting, and the few driver settings that differ.
+ */
+enum SqlDialect {
+    /**
+     * A MySQL or MariaDB server, using the connection details from the config.
+     */
+    MYSQL("MySQL", "com.mysql.cj.jdbc.Driver", Integer.MIN_VALUE, true) {
+        @Override
+        void configure(HikariDataSource ds, ProNouns plugin) {
+            connect(ds, plugin.getConfigHandler().getSqlConnectionData());
+        }
+
+        @Override
+        @Nullable HikariDataSource openReadReplica(ProNouns plugin) {
+            SqlInfoContainer replicaData = plugin.getConfigHandler().getSqlConnectionData().getReadReplica();
+            if (replicaData == null) {
+                return null;
+            }
+            HikariDataSource replica = new HikariDataSource();
+            replica.setDriverClassName(driverClass());
+            connect(replica, replicaData);
+            replica.setReadOnly(true);
+            // fail over to the main database quickly rather than holding up reads
+            replica.setConnectionTimeout(2000);
+            return replica;
+        }
+
+        @Override
+        boolean lock(Connection connection, String name, int timeoutSeconds) throws SQLException {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+                stmt.setString(1, name);
+                stmt.setInt(2, timeoutSeconds);
+                try (ResultSet set = stmt.executeQuery()) {
+                    return set.next() && set.getInt(1) == 1;
+                }
+            }
+        }
+
+        @Override
+        void unlock(Connection connection, String name) throws SQLException {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                stmt.setString(1, name);
+                stmt.executeQuery().close();
+            }
+        }
+
+        private void connect(HikariDataSource ds, SqlInfoContainer sqlData) {
+            ds.setJdbcUrl("jdbc:mysql://" + sqlData.getHost() + ":" + sqlData.getPort() + "/"
+                + sqlData.getDatabase() + "?useSSL=false");
+            ds.setUsername(sqlData.getUsername());
+            ds.setPassword(sqlData.getPassword());
+            ds.addDataSourceProperty("cachePrepStmts", "true");
+            ds.addDataSourceProperty("prepStmtCacheSize", "250");
+            ds.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+            ds.addDataSourceProperty("useServerPrepStmts ", "true");
+        }
+    },
+
+    /**
+     * An H2 database kept in the plugin's data folder, for servers without a database server.
+     */
+    H2("H2", "org.h2.Driver", 500, false) {
+        @Override
+        void configure(HikariDataSource ds, ProNouns plugin) {
+            String path = plugin.getPlatform().getConfigPath(plugin).resolve("datastore").toAbsolutePath().toString();
+            // each connection keeps its most used statements compiled
+            ds.setJdbcUrl("jdbc:h2:file:" + path + ";QUERY_CACHE_SIZE=32");
+            ds.setUsername("sa");
+            ds.setPassword("");
+            // everything happens in this process, so a few connections are plenty
+            ds.setMaximumPoolSize(4);
+        }
+    };
+
+    private final String displayName;
+    private final String driverClass;
+    private final int streamingFetchSize;
+    private final boolean shared;
+
+    SqlDialect(String displayName, String driverClass, int streamingFetchSize, boolean shared) {
+        this.displayName = displayName;
+        this.driverClass = driverClass;
+        this.streamingFetchSize = streamingFetchSize;
+        this.shared = shared;
+    }
+
+    /**
+     * Points the data source at the database.
+     */
+    abstract void configure(HikariDataSource ds, ProNouns plugin);
+
+    /**
+     * @return a data source for the configured read replica, which connects when first used,
+     * or null if reads should go to the main database
+     */
+    @Nullable HikariDataSource openReadReplica(ProNouns plugin) {
+        return null;
+    }
+
+    /**
+     * Takes a named lock shared by every server using the database, waiting up to the given time for it.
+     * The lock belongs to the connection, which must be kept until {@link #unlock} is called.
+     * A database only this server uses has nobody to share with, so the lock is always taken.
+     *
+     * @return whether the lock was taken
+     */
+    boolean lock(Connection connection, String name, int timeoutSeconds) throws SQLException {
+        return true;
+    }
+
+    void unlock(Connection connection, String name) throws SQLException {
+    }
+
+    /**
+     * @return the name used in log messages
+     */
+    String displayName() {
+        return displayName;
+    }
+
+    String driverClass() {
+        return driverClass;
+    }
+
+    /**
+     * @return the fetch size that makes the driver stream a large result rather than loading it all at once.
+     * The MySQL driver only does this for {@link Integer#MIN_VALUE}, which other drivers reject
+     */
+    int streamingFetchSize() {
+        return streamingFetchSize;
+    }
+
+    /**
+     * @return whether several servers can use the database at once, so need to tell each other about changes
+     */
+    boolean shared() {
+        return shared;
+    }
+}
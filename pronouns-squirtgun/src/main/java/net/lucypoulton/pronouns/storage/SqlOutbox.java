@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps changes that couldn't be written to the database in an append-only file, so they aren't lost
+ * if the server stops before the database comes back. Each record is a player's whole list of pronouns
+ * along with when they were changed, so replaying the file in order leaves each player with their latest change.
+ * Once a player's change has been written to the database, a record saying so is appended, so it isn't
+ * replayed over anything newer.
+ * <p>
+ * Records are framed with their length and a CRC, so a record torn by a crash or a failed save is
+ * recognised, and the file is cut back to the last complete record.
+ */
+final class SqlOutbox {
+
+    private static final byte CHANGED = 0;
+    private static final byte WRITTEN = 1;
+    // far larger than any real record - anything bigger is corrupt
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    /**
+     * A player's change as saved in the file.
+     */
+    static final class Change {
+        private final List<String> sets;
+        private final long changedAt;
+
+        private Change(List<String> sets, long changedAt) {
+            this.sets = sets;
+            this.changedAt = changedAt;
+        }
+
+        Set<String> sets() {
+            return new LinkedHashSet<>(sets);
+        }
+
+        /**
+         * @return when the change was made, in milliseconds since the epoch
+         */
+        long changedAt() {
+            return changedAt;
+        }
+    }
+
+    private final Path file;
+    private final Logger logger;
+    // the latest change saved for each player, so an unchanged write isn't saved again on every failure
+    private final Map<UUID, Change> saved = new HashMap<>();
+    private boolean exists;
+
+    SqlOutbox(Path file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Reads changes left over from a previous run.
+     *
+     * @return the latest change for each player in the file that hasn't since been written,
+     * in the order they were last changed
+     */
+    synchronized Map<UUID, Change> load() {
+        Map<UUID, Change> out = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return out;
+        }
+        exists = true;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+            while (contents.hasRemaining() && channel.read(contents, contents.position()) > 0) {
+                // keep reading
+            }
+            contents.flip();
+
+            int validLength = 0;
+            while (contents.hasRemaining()) {
+                byte[] record = nextRecord(contents);
+                if (record == null) {
+                    break;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = in.readByte();
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                if (type == WRITTEN) {
+                    saved.remove(uuid);
+                    out.remove(uuid);
+                } else {
+                    long changedAt = in.readLong();
+                    int count = in.readUnsignedShort();
+                    List<String> sets = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        sets.add(in.readUTF());
+                    }
+                    Change change = new Change(List.copyOf(sets), changedAt);
+                    saved.put(uuid, change);
+                    out.remove(uuid);
+                    out.put(uuid, change);
+                }
+                validLength = contents.position();
+            }
+
+            if (validLength < channel.size()) {
+                // the server stopped part way through saving the last record, or a save failed
+                logger.warning(file.getFileName() + " ends with an incomplete record, which has been discarded.");
+                channel.truncate(validLength);
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to read " + file.getFileName() + " - " + e);
+        }
+        return out;
+    }
+
+    /**
+     * @return the next record's contents, or null if the rest of the file isn't a complete record
+     */
+    private static byte[] nextRecord(ByteBuffer contents) {
+        if (contents.remaining() < 4) {
+            return null;
+        }
+        int length = contents.getInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE || contents.remaining() < length + 4) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        contents.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != contents.getInt()) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Appends any of the given changes that aren't already saved.
+     *
+     * @param changedAt when each change was made. Changes missing from it are treated as made now
+     * @return false if they couldn't be saved
+     */
+    synchronized boolean save(Map<UUID, Set<String>> changes, Map<UUID, Long> changedAt) {
+        Map<UUID, Change> unsaved = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        changes.forEach((uuid, sets) -> {
+            List<String> list = List.copyOf(sets);
+            Change previous = saved.get(uuid);
+            if (previous == null || !list.equals(previous.sets)) {
+                unsaved.put(uuid, new Change(list, changedAt.getOrDefault(uuid, now)));
+            }
+        });
+        if (unsaved.isEmpty()) {
+            return true;
+        }
+
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+             DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Map.Entry<UUID, Change> entry : unsaved.entrySet()) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                DataOutputStream recordOut = new DataOutputStream(record);
+                writeHeader(recordOut, CHANGED, entry.getKey());
+                recordOut.writeLong(entry.getValue().changedAt);
+                recordOut.writeShort(entry.getValue().sets.size());
+                for (String set : entry.getValue().sets) {
+                    recordOut.writeUTF(set);
+                }
+                frame(out, record.toByteArray());
+            }
+            if (!append(bytes.toByteArray())) {
+                return false;
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to save unwritten changes to " + file.getFileName() + " - " + e);
+            return false;
+        }
+        saved.putAll(unsaved);
+        return true;
+    }
+
+    /**
+     * Notes that the given players' changes have been written to the database, so the saved changes for them
+     * aren't replayed over anything newer if the server stops before the rest are written.
+     */
+    synchronized void written(Collection<UUID> players) {
+        List<UUID> recorded = new ArrayList<>();
+        for (UUID uuid : players) {
+            if (saved.containsKey(uuid)) {
+                recorded.add(uuid);
+            }
+        }
+        if (recorded.isEmpty()) {
+            return;
+        }
+
+        try (ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+             DataOutputStream out = new DataOutputStream(bytes)) {
+            for (UUID uuid : recorded) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                writeHeader(new DataOutputStream(record), WRITTEN, uuid);
+                frame(out, record.toByteArray());
+            }
+            if (!append(bytes.toByteArray())) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to update " + file.getFileName() + " - " + e);
+            return;
+        }
+        recorded.forEach(saved::remove);
+    }
+
+    private static void writeHeader(DataOutputStream out, byte type, UUID uuid) throws IOException {
+        out.writeByte(type);
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static void frame(DataOutputStream out, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes records to the end of the file and forces them to disk. If that fails part way,
+     * the file is cut back to where it ended before, so later records aren't appended after a torn one.
+     */
+    private boolean append(byte[] records) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            exists = true;
+            long start = channel.size();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(records);
+                long position = start;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(start);
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                }
+                throw e;
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to save unwritten changes to " + file.getFileName() + " - " + e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the file, once everything in it has been written to the database.
+     */
+    synchronized void clear() {
+        if (!exists) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+            saved.clear();
+            exists = false;
+        } catch (IOException e) {
+            logger.warning("Failed to delete " + file.getFileName() + " - " + e);
+        }
+    }
+
+    /**
+     * @return the number of players with changes in the file
+     */
+    synchronized int size() {
+        return saved.size();
+    }
+
+    String fileName() {
+        return file.getFileName().toString();
+    }
+}
@@ -19,13 +19,111 @@
 package net.lucypoulton.pronouns.storage;
 
 import com.google.common.collect.SetMultimap;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.BiConsumer;
 
 public interface Storage {
-    Set<String> getPronouns(UUID uuid);
+    /**
+     * @return the player's pronouns, or null if they couldn't be read right now, such as while the database
+     * is unreachable. A null result shouldn't be cached
+     */
+    @Nullable Set<String> getPronouns(UUID uuid);
+
+    /**
+     * Gets a player's pronouns only if they can be read without any blocking I/O.
+     * Storages that hold everything in memory can just return {@link #getPronouns(UUID)}.
+     *
+     * @return the player's pronouns, or null if they aren't in memory
+     */
+    default @Nullable Set<String> getCachedPronouns(UUID uuid) {
+        return getPronouns(uuid);
+    }
+
+    /**
+     * Gets the pronouns of many players at once. Storages should override this when they can
+     * serve it with fewer round-trips than one lookup per player.
+     *
+     * @return a map of each player to their pronouns. Players without pronouns map to an empty set,
+     * and players that couldn't be loaded are left out
+     */
+    default Map<UUID, Set<String>> getPronouns(Collection<UUID> uuids) {
+        Map<UUID, Set<String>> out = new HashMap<>();
+        for (UUID uuid : uuids) {
+            Set<String> sets = getPronouns(uuid);
+            if (sets != null) {
+                out.put(uuid, sets);
+            }
+        }
+        return out;
+    }
+
     void setPronouns(UUID uuid, Set<String> set);
     void clearPronouns(UUID uuid);
+
+    /**
+     * Loads every stored player's pronouns into memory at once. Prefer {@link #forEachPronouns(BiConsumer)}
+     * when there may be a lot of players.
+     */
     SetMultimap<UUID, String> getAllPronouns();
+
+    /**
+     * Passes every stored player's pronouns to a consumer, one player at a time. Storages should override this
+     * so that they don't hold every player in memory at once. Players without pronouns are skipped.
+     *
+     * @return false if reading failed part way through
+     */
+    default boolean forEachPronouns(BiConsumer<UUID, List<String>> consumer) {
+        getAllPronouns().asMap().forEach((uuid, sets) -> consumer.accept(uuid, new ArrayList<>(sets)));
+        return true;
+    }
+
+    /**
+     * Registers a listener to be told about changes made somewhere other than this storage instance,
+     * such as by another server sharing the same database. Storages that can't see such changes ignore this.
+     */
+    default void addChangeListener(ChangeListener listener) {
+    }
+
+    /**
+     * @return the cache this storage keeps players in, or null if it doesn't use one
+     */
+    default @Nullable PlayerCache getCache() {
+        return null;
+    }
+
+    /**
+     * Writes out any changes that are queued in memory, blocking until they have been written.
+     * This lets callers that write many players at once keep the queue from growing without limit.
+     *
+     * @return false if some changes couldn't be written - they stay queued
+     */
+    default boolean flush() {
+        return true;
+    }
+
+    /**
+     * Writes out anything still pending and releases any resources. Called when the plugin is disabled.
+     */
+    default void close() {
+    }
+
+    interface ChangeListener {
+        /**
+         * Called on a background thread after a player's pronouns were changed elsewhere.
+         */
+        void playerChanged(UUID uuid);
+
+        /**
+         * Called on a background thread when changes may have been missed, so every player should be treated as changed.
+         */
+        void allChanged();
+    }
 }
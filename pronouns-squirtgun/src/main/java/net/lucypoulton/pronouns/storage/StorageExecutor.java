@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs storage operations in the background. Operations for the same player always run one at a time,
+ * in the order they were queued, while different players are handled in parallel.
+ * <p>
+ * The number of operations queued is bounded - once full, submitting fails straight away rather than holding
+ * up the caller. Once shut down, nothing more is accepted, and anything still waiting for an earlier operation
+ * runs on whichever thread finishes that one.
+ */
+public final class StorageExecutor {
+
+    private final ExecutorService workers;
+    // runs work on the workers, or directly once they have been shut down
+    private final Executor runner;
+    private final Semaphore capacity;
+    private final AtomicInteger queued = new AtomicInteger();
+    // the last operation queued for each player, which the next one for them waits on
+    private final Map<UUID, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    /**
+     * @param threads  how many players' operations can run at once
+     * @param capacity the most submitted operations that can be queued or running
+     */
+    public StorageExecutor(int threads, int capacity) {
+        AtomicInteger threadId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ProNouns I/O #" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.runner = task -> {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+        this.capacity = new Semaphore(capacity);
+    }
+
+    /**
+     * Queues an operation for a player, if there is space.
+     *
+     * @return a future completed with the operation's result. If the queue is full or the executor has been
+     * shut down, this future is failed with a {@link RejectedExecutionException} and the operation never runs
+     */
+    public <T> CompletableFuture<T> submit(UUID uuid, Supplier<T> operation) {
+        if (shutdown) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Storage executor has been shut down"));
+        }
+        if (!capacity.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Storage queue is full"));
+        }
+        return chain(uuid, operation).whenComplete((value, error) -> capacity.release());
+    }
+
+    public CompletableFuture<Void> submit(UUID uuid, Runnable operation) {
+        return submit(uuid, () -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> chain(UUID uuid, Supplier<T> operation) {
+        queued.incrementAndGet();
+        // the completion callback must be attached outside compute, as it may run immediately and touch the map
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> next = (CompletableFuture<T>) tails.compute(uuid, (key, tail) ->
+            (tail == null ? CompletableFuture.completedFuture(null) : tail)
+                .handleAsync((ignored, error) -> operation.get(), runner));
+        return next.whenComplete((value, error) -> {
+            tails.remove(uuid, next);
+            queued.decrementAndGet();
+        });
+    }
+
+    /**
+     * @return the number of operations queued or running
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Stops accepting submitted work and waits for queued operations to finish.
+     *
+     * @return whether everything finished in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        shutdown = true;
+        workers.shutdown();
+        return workers.awaitTermination(timeout, unit);
+    }
+}
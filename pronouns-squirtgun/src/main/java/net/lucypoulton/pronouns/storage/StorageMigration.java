@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Copies every player from one storage to another. Players are streamed from the source with
+ * {@link Storage#forEachPronouns}, so only one batch is held in memory at a time.
+ * <p>
+ * Progress is checkpointed to a file every few batches, once the target has written them. An interrupted
+ * migration picks up from its checkpoint when it is started again, as long as the source still lists its players
+ * in the same order - if it doesn't, the migration starts over, which is safe as copying a player twice
+ * just writes the same pronouns again.
+ */
+public final class StorageMigration {
+
+    private static final int BATCH_SIZE = 500;
+    // the target is flushed and the checkpoint saved after this many batches
+    private static final int BATCHES_PER_CHECKPOINT = 20;
+
+    private final Storage source;
+    private final Storage target;
+    private final Path checkpointFile;
+    private final String description;
+    private final Logger logger;
+
+    private volatile boolean cancelled;
+    private volatile long copied;
+    // players copied before this run, which don't count towards its speed
+    private volatile long resumedFrom;
+    private volatile long startedAt;
+
+    /**
+     * @param checkpointFile where progress is saved. Use a different file for each source and target pair
+     * @param description    describes the migration in log messages, such as "yml to mysql"
+     */
+    public StorageMigration(Storage source, Storage target, Path checkpointFile, String description, Logger logger) {
+        this.source = source;
+        this.target = target;
+        this.checkpointFile = checkpointFile;
+        this.description = description;
+        this.logger = logger;
+    }
+
+    /**
+     * Runs the migration on the calling thread.
+     *
+     * @return true if every player was copied, false if it failed or was cancelled
+     */
+    public boolean run() {
+        startedAt = System.nanoTime();
+        Checkpoint checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            logger.info("Resuming migration from " + description + " after " + checkpoint.copied + " players.");
+        } else {
+            logger.info("Migrating from " + description + "...");
+        }
+
+        try {
+            try {
+                copy(checkpoint);
+            } catch (OrderChangedException e) {
+                logger.warning("The source storage has changed since the last attempt, so the migration from "
+                    + description + " is starting over.");
+                copy(null);
+            }
+        } catch (CancelledException e) {
+            logger.warning("Migration from " + description + " was stopped after " + copied
+                + " players. Run it again to carry on.");
+            return false;
+        } catch (FailedException e) {
+            logger.severe("Migration from " + description + " failed after " + copied
+                + " players - " + e.getMessage() + ". Run it again to carry on from the last checkpoint.");
+            return false;
+        }
+
+        try {
+            Files.deleteIfExists(checkpointFile);
+        } catch (IOException e) {
+            logger.warning("Failed to delete " + checkpointFile.getFileName() + " - " + e);
+        }
+        logger.info("Migrated " + copied + " players from " + description + " in "
+            + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt) + "s.");
+        return true;
+    }
+
+    private void copy(@Nullable Checkpoint checkpoint) {
+        long skip = checkpoint == null ? 0 : checkpoint.copied;
+        copied = skip;
+        resumedFrom = skip;
+        Map<UUID, LinkedHashSet<String>> batch = new LinkedHashMap<>();
+        int[] batchesSinceCheckpoint = {0};
+        long[] position = {0};
+
+        boolean read = source.forEachPronouns((uuid, sets) -> {
+            if (cancelled) {
+                throw new CancelledException();
+            }
+            long index = position[0]++;
+            if (index < skip) {
+                if (index == skip - 1 && !uuid.equals(checkpoint.last)) {
+                    throw new OrderChangedException();
+                }
+                return;
+            }
+
+            batch.put(uuid, new LinkedHashSet<>(sets));
+            if (batch.size() >= BATCH_SIZE) {
+                UUID last = writeBatch(batch);
+                if (++batchesSinceCheckpoint[0] >= BATCHES_PER_CHECKPOINT) {
+                    batchesSinceCheckpoint[0] = 0;
+                    checkpoint(last);
+                }
+            }
+        });
+        if (!read) {
+            throw new FailedException("couldn't read from the source storage");
+        }
+        if (position[0] < skip) {
+            // the source has fewer players than the checkpoint says were already copied
+            throw new OrderChangedException();
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(batch);
+        }
+        if (!target.flush()) {
+            throw new FailedException("couldn't write to the target storage");
+        }
+    }
+
+    /**
+     * @return the last player in the batch
+     */
+    private UUID writeBatch(Map<UUID, LinkedHashSet<String>> batch) {
+        UUID last = null;
+        for (Map.Entry<UUID, LinkedHashSet<String>> entry : batch.entrySet()) {
+            target.setPronouns(entry.getKey(), entry.getValue());
+            last = entry.getKey();
+        }
+        copied += batch.size();
+        batch.clear();
+        return last;
+    }
+
+    private void checkpoint(UUID last) {
+        if (!target.flush()) {
+            throw new FailedException("couldn't write to the target storage");
+        }
+        Properties properties = new Properties();
+        properties.setProperty("copied", Long.toString(copied));
+        properties.setProperty("last", last.toString());
+        try (OutputStream out = Files.newOutputStream(checkpointFile)) {
+            properties.store(out, "ProNouns migration from " + description + " - delete this to start the migration over");
+        } catch (IOException e) {
+            throw new FailedException("couldn't save the checkpoint: " + e);
+        }
+        logger.info("Migrated " + copied + " players (" + getPlayersPerSecond() + " players/s)...");
+    }
+
+    private @Nullable Checkpoint readCheckpoint() {
+        if (!Files.exists(checkpointFile)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(checkpointFile)) {
+            properties.load(in);
+            return new Checkpoint(Long.parseLong(properties.getProperty("copied")),
+                UUID.fromString(properties.getProperty("last")));
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Ignoring unreadable migration checkpoint " + checkpointFile.getFileName() + " - " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stops the migration after the player currently being copied. Progress up to the last checkpoint is kept.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the number of players copied so far, including any copied before resuming
+     */
+    public long getCopied() {
+        return copied;
+    }
+
+    public long getPlayersPerSecond() {
+        long elapsed = System.nanoTime() - startedAt;
+        return elapsed <= 0 ? 0 : (copied - resumedFrom) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    private static class Checkpoint {
+        private final long copied;
+        private final UUID last;
+
+        private Checkpoint(long copied, UUID last) {
+            this.copied = copied;
+            this.last = last;
+        }
+    }
+
+    // thrown out of the forEachPronouns consumer, which has no other way to stop early
+    private static class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class OrderChangedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class FailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private FailedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2021 Lucy Poulton https://lucyy.me
+ * This file is part of ProNouns.
+ *
+ * ProNouns is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ProNouns is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ProNouns.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.lucypoulton.pronouns.storage;
+
+import com.zaxxer.hikari.HikariDataSource;
+import net.lucypoulton.pronouns.config.SqlInfoContainer;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Runs {@link MysqlFileStorage} against in-memory H2 databases. Several storages opened on the same database
+ * stand in for servers sharing it.
+ */
+class MysqlFileStorageTest {
+
+    private static final Logger LOGGER = Logger.getLogger(MysqlFileStorageTest.class.getName());
+    // long enough that nothing is written until the test flushes
+    private static final long MANUAL_FLUSH = 60_000;
+    private static final long SYNC_INTERVAL = 50;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final String url = databaseUrl();
+    private final String replicaUrl = databaseUrl();
+    private final List<MysqlFileStorage> storages = new ArrayList<>();
+
+    @TempDir
+    Path dataFolder;
+
+    private static String databaseUrl() {
+        // kept until the JVM exits rather than when the last connection closes, so it outlives each storage
+        return "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+    }
+
+    @AfterEach
+    void closeStorages() {
+        storages.forEach(MysqlFileStorage::close);
+    }
+
+    /**
+     * Opens a storage on the test database, acting as a server that may share it with others.
+     *
+     * @param name names the storage's data folder, which holds its outbox
+     */
+    private MysqlFileStorage open(String name, long syncInterval, @Nullable HikariDataSource replica) throws Exception {
+        SqlInfoContainer settings = new SqlInfoContainer("", 0, "", "", "", MANUAL_FLUSH, 100, syncInterval,
+            0, 200, null);
+        Path folder = Files.createDirectories(dataFolder.resolve(name));
+        MysqlFileStorage storage = new MysqlFileStorage(SqlDialect.H2, true, ds -> connect(ds, url),
+            replica, settings, folder, LOGGER);
+        storages.add(storage);
+        return storage;
+    }
+
+    private MysqlFileStorage open(String name, long syncInterval) throws Exception {
+        return open(name, syncInterval, null);
+    }
+
+    private MysqlFileStorage open(String name) throws Exception {
+        return open(name, 0);
+    }
+
+    /**
+     * Closes a storage before the end of the test, as its server would when stopping.
+     */
+    private void close(MysqlFileStorage storage) {
+        storage.close();
+        storages.remove(storage);
+    }
+
+    /**
+     * Opens a storage that reads from {@link #replicaUrl}, which only has what {@link #replicate} has copied to it.
+     */
+    private MysqlFileStorage openWithReplica(String name) throws Exception {
+        HikariDataSource replica = new HikariDataSource();
+        replica.setDriverClassName(SqlDialect.H2.driverClass());
+        connect(replica, replicaUrl);
+        replica.setReadOnly(true);
+        return open(name, SYNC_INTERVAL, replica);
+    }
+
+    /**
+     * Brings the replica up to date with the test database.
+     */
+    private void replicate() throws SQLException {
+        String script = dataFolder.resolve("replica.sql").toAbsolutePath().toString().replace("'", "''");
+        execute("SCRIPT TO '" + script + "'");
+        try (Connection connection = DriverManager.getConnection(replicaUrl, "sa", "");
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+            stmt.execute("RUNSCRIPT FROM '" + script + "'");
+        }
+    }
+
+    private void breakReplica() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(replicaUrl, "sa", "");
+             Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    private static void connect(HikariDataSource ds, String url) {
+        ds.setJdbcUrl(url);
+        ds.setUsername("sa");
+        ds.setPassword("");
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    private void execute(String... statements) throws SQLException {
+        try (Connection connection = connect(); Statement stmt = connection.createStatement()) {
+            for (String statement : statements) {
+                stmt.execute(statement);
+            }
+        }
+    }
+
+    /**
+     * @return the player's pronouns as written to the indexed table, in priority order
+     */
+    private List<String> stored(UUID uuid) throws SQLException {
+        List<String> out = new ArrayList<>();
+        try (Connection connection = connect();
+             PreparedStatement stmt = connection.prepareStatement(
+                 "SELECT pronouns FROM pronouns_player_sets WHERE uuid=? ORDER BY priority")) {
+            stmt.setBytes(1, MysqlTableLayout.toBytes(uuid));
+            try (ResultSet set = stmt.executeQuery()) {
+                while (set.next()) {
+                    out.add(set.getString("pronouns"));
+                }
+            }
+        }
+        return out;
+    }
+
+    private int count(String query) throws SQLException {
+        try (Connection connection = connect(); Statement stmt = connection.createStatement();
+             ResultSet set = stmt.executeQuery(query)) {
+            set.next();
+            return set.getInt(1);
+        }
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static Set<String> sets(String... sets) {
+        return new LinkedHashSet<>(List.of(sets));
+    }
+
+    private static class RecordingListener implements Storage.ChangeListener {
+        private final List<UUID> changed = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void playerChanged(UUID uuid) {
+            changed.add(uuid);
+        }
+
+        @Override
+        public void allChanged() {
+        }
+    }
+
+    @Test
+    void writesAreQueuedUntilFlushed() throws Exception {
+        MysqlFileStorage storage = open("server");
+        UUID uuid = UUID.randomUUID();
+
+        storage.setPronouns(uuid, sets("she/her", "they/them"));
+        assertEquals(1, storage.getPendingWriteCount());
+        assertEquals(List.of(), stored(uuid));
+        assertEquals(List.of("she/her", "they/them"), new ArrayList<>(storage.getPronouns(uuid, false)));
+
+        assertTrue(storage.flush());
+        assertEquals(0, storage.getPendingWriteCount());
+        assertEquals(List.of("she/her", "they/them"), stored(uuid));
+    }
+
+    @Test
+    void onlyTheLatestChangeIsWritten() throws Exception {
+        MysqlFileStorage storage = open("server");
+        UUID uuid = UUID.randomUUID();
+
+        storage.setPronouns(uuid, sets("she/her"));
+        storage.setPronouns(uuid, sets("he/him", "it/its"));
+        assertEquals(1, storage.getPendingWriteCount());
+        close(storage);
+        assertEquals(List.of("he/him", "it/its"), stored(uuid));
+        assertEquals(1, count("SELECT COUNT(*) FROM pronouns_changes"));
+    }
+
+    @Test
+    void clearedPronounsAreDeleted() throws Exception {
+        MysqlFileStorage storage = open("server");
+        UUID uuid = UUID.randomUUID();
+        storage.setPronouns(uuid, sets("she/her"));
+        close(storage);
+
+        MysqlFileStorage restarted = open("restarted");
+        restarted.clearPronouns(uuid);
+        assertEquals(Set.of(), restarted.getPronouns(uuid, false));
+        close(restarted);
+        assertEquals(List.of(), stored(uuid));
+    }
+
+    @Test
+    void queuedChangesAreWrittenOnClose() throws Exception {
+        MysqlFileStorage storage = open("server");
+        UUID uuid = UUID.randomUUID();
+        storage.setPronouns(uuid, sets("xe/xem"));
+        close(storage);
+
+        assertEquals(List.of("xe/xem"), stored(uuid));
+        assertEquals(Set.of("xe/xem"), open("restarted").getPronouns(uuid));
+    }
+
+    @Test
+    void unwrittenChangesAreKeptInTheOutbox() throws Exception {
+        MysqlFileStorage storage = open("server");
+        UUID uuid = UUID.randomUUID();
+        storage.setPronouns(uuid, sets("fae/faer"));
+        execute("DROP TABLE pronouns_player_sets");
+
+        assertFalse(storage.flush());
+        assertEquals(1, storage.getPendingWriteCount());
+        assertEquals(1, storage.getOutboxSize());
+        close(storage);
+
+        execute("CREATE TABLE pronouns_player_sets ( uuid BINARY(16) NOT NULL, priority INT NOT NULL,"
+            + " pronouns TEXT NOT NULL, PRIMARY KEY (uuid, priority) )");
+        MysqlFileStorage restarted = open("server");
+        assertEquals(1, restarted.getPendingWriteCount());
+        assertTrue(restarted.flush());
+        assertEquals(List.of("fae/faer"), stored(uuid));
+        assertEquals(0, restarted.getOutboxSize());
+    }
+
+    @Test
+    void legacyTableIsMigrated() throws Exception {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        execute("CREATE TABLE pronouns_players ( playerUuid VARCHAR(36), pronouns VARCHAR(64), priority INT )",
+            "INSERT INTO pronouns_players VALUES ('" + first + "', 'they/them', 1)",
+            "INSERT INTO pronouns_players VALUES ('" + first + "', 'she/her', 0)",
+            "INSERT INTO pronouns_players VALUES ('" + first + "', 'she/her', 2)",
+            "INSERT INTO pronouns_players VALUES ('" + second + "', 'he/him', 0)",
+            "INSERT INTO pronouns_players VALUES ('not a uuid', 'it/its', 0)");
+
+        MysqlFileStorage storage = open("server");
+        await("the schema to be migrated", () -> {
+            try {
+                return count("SELECT version FROM pronouns_schema") == MysqlSchemaMigrator.LATEST_VERSION;
+            } catch (SQLException e) {
+                return false;
+            }
+        });
+
+        assertEquals(List.of("she/her", "they/them"), stored(first));
+        assertEquals(List.of("he/him"), stored(second));
+        assertEquals(3, count("SELECT COUNT(*) FROM pronouns_player_sets"));
+        // the old table is left alone
+        assertEquals(5, count("SELECT COUNT(*) FROM pronouns_players"));
+
+        UUID third = UUID.randomUUID();
+        storage.setPronouns(third, sets("ze/hir"));
+        assertEquals(List.of("she/her", "they/them"), new ArrayList<>(storage.getPronouns(first, false)));
+        close(storage);
+        assertEquals(List.of("ze/hir"), stored(third));
+    }
+
+    @Test
+    void changesFromOtherServersArePickedUp() throws Exception {
+        MysqlFileStorage first = open("first", SYNC_INTERVAL);
+        MysqlFileStorage second = open("second", SYNC_INTERVAL);
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        first.addChangeListener(firstListener);
+        second.addChangeListener(secondListener);
+
+        UUID uuid = UUID.randomUUID();
+        assertEquals(Set.of(), second.getPronouns(uuid));
+        first.setPronouns(uuid, sets("she/her"));
+        assertTrue(first.flush());
+
+        await("the second server to see the change", () -> secondListener.changed.contains(uuid));
+        assertEquals(Set.of("she/her"), second.getPronouns(uuid));
+
+        // once the first server has seen a later change, it has polled past its own without reporting it
+        UUID other = UUID.randomUUID();
+        second.setPronouns(other, sets("they/them"));
+        assertTrue(second.flush());
+        await("the first server to see the change", () -> firstListener.changed.contains(other));
+        assertEquals(List.of(other), firstListener.changed);
+        assertEquals(List.of(uuid), secondListener.changed);
+    }
+
+    @Test
+    void readsGoToTheReplica() throws Exception {
+        MysqlFileStorage writer = open("writer");
+        UUID uuid = UUID.randomUUID();
+        writer.setPronouns(uuid, sets("she/her"));
+        assertTrue(writer.flush());
+        replicate();
+        // started after the change, so doesn't wait for the replica to have it
+        MysqlFileStorage reader = openWithReplica("reader");
+
+        assertEquals(Set.of("she/her"), reader.getPronouns(uuid));
+        assertEquals(1, reader.getReplicaReads());
+    }
+
+    @Test
+    void ownWritesAreReadBackBeforeTheReplicaHasThem() throws Exception {
+        MysqlFileStorage storage = openWithReplica("server");
+        replicate();
+        UUID uuid = UUID.randomUUID();
+        storage.setPronouns(uuid, sets("they/them"));
+        assertTrue(storage.flush());
+
+        storage.onPlayerDisconnect(uuid);
+        assertEquals(Set.of("they/them"), storage.getPronouns(uuid));
+        assertEquals(Set.of("they/them"), storage.getPronouns(List.of(uuid)).get(uuid));
+        assertEquals(0, storage.getReplicaReads());
+    }
+
+    @Test
+    void changedPlayersAreReadFromTheMainDatabaseUntilTheReplicaCatchesUp() throws Exception {
+        MysqlFileStorage writer = open("writer");
+        MysqlFileStorage reader = openWithReplica("reader");
+        RecordingListener listener = new RecordingListener();
+        reader.addChangeListener(listener);
+        UUID uuid = UUID.randomUUID();
+        writer.setPronouns(uuid, sets("she/her"));
+        assertTrue(writer.flush());
+        replicate();
+        await("the reader to see the first change", () -> listener.changed.contains(uuid));
+        listener.changed.clear();
+        // the change was read from the main database, as the replica may not have had it yet
+        await("the replica to be used again", () -> {
+            reader.getPronouns(uuid, false);
+            return reader.getReplicaReads() > 0;
+        });
+        assertEquals(Set.of("she/her"), reader.getPronouns(uuid, false));
+
+        writer.setPronouns(uuid, sets("he/him"));
+        assertTrue(writer.flush());
+        await("the reader to see the second change", () -> listener.changed.contains(uuid));
+        long replicaReads = reader.getReplicaReads();
+        // the replica still has the first change, so it mustn't be read from or cached
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Set.of("he/him"), reader.getPronouns(uuid, false));
+            Thread.sleep(SYNC_INTERVAL);
+        }
+        assertEquals(Set.of("he/him"), reader.getPronouns(List.of(uuid)).get(uuid));
+        assertEquals(replicaReads, reader.getReplicaReads());
+
+        replicate();
+        await("the replica to be used again", () -> {
+            reader.getPronouns(uuid, false);
+            return reader.getReplicaReads() > replicaReads;
+        });
+        assertEquals(Set.of("he/him"), reader.getPronouns(uuid, false));
+    }
+
+    @Test
+    void readsFailOverToTheMainDatabase() throws Exception {
+        MysqlFileStorage writer = open("writer");
+        UUID uuid = UUID.randomUUID();
+        writer.setPronouns(uuid, sets("xe/xem"));
+        assertTrue(writer.flush());
+        MysqlFileStorage reader = openWithReplica("reader");
+        breakReplica();
+
+        assertEquals(Set.of("xe/xem"), reader.getPronouns(uuid));
+        assertEquals(1, reader.getReplicaFailovers());
+        assertFalse(reader.isReadReplicaAvailable());
+
+        // the replica isn't tried again straight away
+        assertEquals(Set.of("xe/xem"), reader.getPronouns(uuid, false));
+        assertEquals(1, reader.getReplicaFailovers());
+        assertEquals(0, reader.getReplicaReads());
+    }
+}